@@ -0,0 +1,136 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.schatzforensic.nanddevice.MappedNandDevice;
+import com.schatzforensic.nanddevice.NANDDevice;
+import com.schatzforensic.nanddevice.NandGeometry;
+
+/**
+ * Pages per second read from a synthetic image, one page at a time, a run of pages at a time and an erase block at a
+ * time, through the channel devices and the memory mapped device. The image is written once per trial and read round
+ * and round, so after warmup it is served from the page cache and the benchmark measures the devices rather than the
+ * disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class DeviceReadBenchmark {
+
+	/**
+	 * The number of pages read by each readPages call, and in each erase block.
+	 */
+	private static final int BATCH = 64;
+
+	@Param({ "2048:64:inband", "2048:64:end", "4096:224:inband", "4096:224:end" })
+	public String geometry;
+
+	@Param({ "channel", "mmap" })
+	public String device;
+
+	@Param({ "16384" })
+	public int pages;
+
+	private File image;
+	private RandomAccessFile file;
+	private NANDDevice nand;
+	private ByteBuffer data;
+	private ByteBuffer spare;
+	private ByteBuffer batchData;
+	private ByteBuffer batchSpare;
+	private long chunk;
+	private long block;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		NandGeometry g = NandGeometry.parse(geometry);
+		image = SyntheticImage.create(null, g, pages, SyntheticImage.SEED);
+		file = new RandomAccessFile(image, "r");
+		if (device.equals("mmap")) {
+			nand = new MappedNandDevice(g.getPageDataSize(), g.getSpareSize(), BATCH, file, g.isSpareNotInBand());
+		} else {
+			nand = g.open(file, BATCH);
+		}
+		data = ByteBuffer.allocate(g.getPageDataSize());
+		spare = ByteBuffer.allocate(g.getSpareSize());
+		batchData = ByteBuffer.allocate(g.getPageDataSize() * BATCH);
+		batchSpare = ByteBuffer.allocate(g.getSpareSize() * BATCH);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		file.close();
+		image.delete();
+	}
+
+	@Benchmark
+	public ByteBuffer readPage() throws IOException {
+		data.clear();
+		spare.clear();
+		nand.readPage(chunk, data, spare);
+		chunk = (chunk + 1) % pages;
+		return data;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public ByteBuffer readPages() throws IOException {
+		if (chunk + BATCH > pages) {
+			chunk = 0;
+		}
+		batchData.clear();
+		batchSpare.clear();
+		nand.readPages(chunk, BATCH, batchData, batchSpare);
+		chunk += BATCH;
+		return batchData;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public ByteBuffer readBlock() throws IOException {
+		batchData.clear();
+		batchSpare.clear();
+		nand.readBlock(block, batchData, batchSpare);
+		block = (block + 1) % (pages / BATCH);
+		return batchData;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.schatzforensic.nanddevice.NandGeometry;
+import com.schatzforensic.views.PartitionedBytePlot;
+
+/**
+ * The rate at which chunks are drawn into an in memory PartitionedBytePlot, through addBuf in each layout direction
+ * and through addPages, which takes the page data and spares in separate buffers as the plotter reads them. Each
+ * operation adds a row of tiles worth of chunks, and the bytes counter reports the chunk bytes drawn per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class PlotBenchmark {
+
+	@Param({ "2048:64", "4096:224" })
+	public String geometry;
+
+	@Param({ "HORIZONTAL", "VERTICAL" })
+	public PartitionedBytePlot.LayoutDirection direction;
+
+	@Param({ "2" })
+	public int tiling;
+
+	@Param({ "4096" })
+	public int height;
+
+	private int pageSize;
+	private int spareSize;
+	private int chunkSize;
+	private PartitionedBytePlot plot;
+	private ByteBuffer interleaved;
+	private ByteBuffer data;
+	private ByteBuffer spare;
+	/**
+	 * The number of the next row of tiles to add.
+	 */
+	private int next;
+
+	/**
+	 * Counts the chunk bytes drawn, reported by JMH as a rate.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		NandGeometry g = NandGeometry.parse(geometry);
+		pageSize = g.getPageDataSize();
+		spareSize = g.getSpareSize();
+		chunkSize = pageSize + spareSize;
+		plot = new PartitionedBytePlot(chunkSize * tiling, height, pageSize, spareSize, direction);
+
+		interleaved = ByteBuffer.allocate(chunkSize * tiling);
+		data = ByteBuffer.allocate(pageSize * tiling);
+		spare = ByteBuffer.allocate(spareSize * tiling);
+		byte[] d = new byte[pageSize];
+		byte[] s = new byte[spareSize];
+		for (int t = 0; t < tiling; t++) {
+			SyntheticImage.fill(64 + t, SyntheticImage.SEED, d, s);
+			interleaved.put(d).put(s);
+			data.put(d);
+			spare.put(s);
+		}
+	}
+
+	@Benchmark
+	public PartitionedBytePlot addBuf(Bytes counter) throws IOException {
+		interleaved.clear();
+		int offset;
+		if (direction == PartitionedBytePlot.LayoutDirection.HORIZONTAL) {
+			offset = next * chunkSize;
+		} else {
+			offset = next * tiling * chunkSize;
+		}
+		next = (next + 1) % height;
+		plot.addBuf(offset, interleaved);
+		counter.bytes += interleaved.capacity();
+		return plot;
+	}
+
+	@Benchmark
+	public PartitionedBytePlot addPages(Bytes counter) throws IOException {
+		plot.addPages(next * tiling, tiling, data, spare);
+		next = (next + 1) % height;
+		counter.bytes += data.capacity() + spare.capacity();
+		return plot;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.schatzforensic.nanddevice.NandGeometry;
+import com.schatzforensic.views.PartitionedBytePlot;
+import com.schatzforensic.views.PngEncoding;
+
+/**
+ * The rate at which a plot of synthetic chunks is encoded to PNG, written to a stream which discards it. The pixels
+ * counter reports the raw image bytes encoded per second, and the png counter the compressed bytes written, so their
+ * ratio is the compression achieved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class PngEncodeBenchmark {
+
+	@Param({ "2048:64" })
+	public String geometry;
+
+	@Param({ "2" })
+	public int tiling;
+
+	@Param({ "2048" })
+	public int height;
+
+	@Param({ "-1", "1" })
+	public int level;
+
+	@Param({ "NONE", "UP", "ADAPTIVE" })
+	public PngEncoding.Filter filter;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private PartitionedBytePlot plot;
+	private long pixels;
+
+	/**
+	 * Counts the image and PNG bytes, reported by JMH as rates.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+		public long pixels;
+		public long png;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			pixels = 0;
+			png = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		NandGeometry g = NandGeometry.parse(geometry);
+		int pageSize = g.getPageDataSize();
+		int spareSize = g.getSpareSize();
+		int width = (pageSize + spareSize) * tiling;
+		plot = new PartitionedBytePlot(width, height, pageSize, spareSize,
+				PartitionedBytePlot.LayoutDirection.VERTICAL);
+		plot.setEncoding(new PngEncoding(level, filter, threads));
+		pixels = (long) PartitionedBytePlot.getImageWidth(width, pageSize, spareSize) * height;
+
+		byte[] d = new byte[pageSize];
+		byte[] s = new byte[spareSize];
+		for (int c = 0; c < tiling * height; c++) {
+			SyntheticImage.fill(c, SyntheticImage.SEED, d, s);
+			plot.addPages(c, 1, ByteBuffer.wrap(d), ByteBuffer.wrap(s));
+		}
+	}
+
+	@Benchmark
+	public long render(Bytes counter) throws IOException {
+		CountingStream os = new CountingStream();
+		plot.render(os);
+		counter.pixels += pixels;
+		counter.png += os.count;
+		return os.count;
+	}
+
+	/**
+	 * Counts and discards what is written.
+	 */
+	private static class CountingStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
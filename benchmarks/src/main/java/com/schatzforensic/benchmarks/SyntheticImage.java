@@ -0,0 +1,136 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.schatzforensic.nanddevice.NandGeometry;
+
+/**
+ * Writes synthetic NAND images for the benchmarks. The contents depend only on the geometry, the number of pages and
+ * the seed, so every run measures the same bytes. Pages come in groups of 64 of one kind in turn: erased, random,
+ * text, small little endian integers and zeros, with the spares of all but erased pages holding a sequence number and
+ * random ECC bytes.
+ */
+public class SyntheticImage {
+
+	/**
+	 * The seed used by the benchmarks.
+	 */
+	public static final long SEED = 0x4e414e44L;
+
+	private static final byte[] TEXT = "The quick brown fox jumps over the lazy dog. Lorem ipsum dolor sit amet. "
+			.getBytes(Charset.forName("US-ASCII"));
+
+	private SyntheticImage() {
+	}
+
+	/**
+	 * Write a synthetic image to a temporary file, which is deleted when the JVM exits.
+	 *
+	 * @param dir The directory to write to, or null for the default temporary directory.
+	 * @param geometry The geometry of the image.
+	 * @param pages The number of pages.
+	 * @param seed The seed of the random contents.
+	 * @return The image file.
+	 * @throws IOException
+	 */
+	public static File create(File dir, NandGeometry geometry, int pages, long seed) throws IOException {
+		File file = File.createTempFile("nand-" + geometry.getPageDataSize() + "-" + geometry.getSpareSize() + "-",
+				".bin", dir);
+		file.deleteOnExit();
+		byte[] data = new byte[geometry.getPageDataSize()];
+		byte[] spare = new byte[geometry.getSpareSize()];
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024);
+		try {
+			if (geometry.isSpareNotInBand()) {
+				for (int p = 0; p < pages; p++) {
+					fill(p, seed, data, spare);
+					os.write(data);
+				}
+				for (int p = 0; p < pages; p++) {
+					fill(p, seed, data, spare);
+					os.write(spare);
+				}
+			} else {
+				for (int p = 0; p < pages; p++) {
+					fill(p, seed, data, spare);
+					os.write(data);
+					os.write(spare);
+				}
+			}
+		} finally {
+			os.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Fill the data and spare of a page.
+	 *
+	 * @param page The page number.
+	 * @param seed The seed of the random contents.
+	 * @param data The array for the page data.
+	 * @param spare The array for the spare.
+	 */
+	public static void fill(int page, long seed, byte[] data, byte[] spare) {
+		Random random = new Random(seed * 31 + page);
+		int kind = (page / 64) % 5;
+		switch (kind) {
+		case 0:
+			Arrays.fill(data, (byte) 0xff);
+			break;
+		case 1:
+			random.nextBytes(data);
+			break;
+		case 2:
+			for (int i = 0; i < data.length; i++) {
+				data[i] = TEXT[(i + page) % TEXT.length];
+			}
+			break;
+		case 3:
+			Arrays.fill(data, (byte) 0);
+			for (int i = 0; i + 1 < data.length; i += 4) {
+				int v = random.nextInt(300);
+				data[i] = (byte) v;
+				data[i + 1] = (byte) (v >> 8);
+			}
+			break;
+		default:
+			Arrays.fill(data, (byte) 0);
+			break;
+		}
+		Arrays.fill(spare, (byte) 0xff);
+		if (kind != 0 && spare.length >= 8) {
+			spare[2] = (byte) (page >> 8);
+			spare[3] = (byte) page;
+			spare[4] = 0;
+			spare[5] = 0x10;
+			for (int i = spare.length / 2; i < spare.length; i++) {
+				spare[i] = (byte) random.nextInt(256);
+			}
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.byteplotter;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.schatzforensic.nanddevice.FileImageSource;
+import com.schatzforensic.nanddevice.ImageSource;
+import com.schatzforensic.nanddevice.NandGeometry;
+
+/**
+ * Ranks candidate page geometries for a NAND image from samples of it, so the geometry can be found without plotting.
+ * <p>
+ * Two statistics are measured for each candidate. The periodicity is how much more often a byte equals the byte one
+ * period earlier than it equals the byte half a period earlier, where the period is the chunk size for inband spares,
+ * and the spare size within the spare area for spares at the end. Measuring against half the period means a multiple
+ * of the correct geometry, such as 4096:128 for a 2048:64 image, does not score, as it repeats at half its period
+ * too. The contrast is the total variation distance between the byte distributions of the spare and page data bytes.
+ * The correct geometry makes the spares line up, so it scores highly on both, while a wrong geometry mixes page data
+ * into the spares.
+ */
+public class GeometryDetector {
+
+	/**
+	 * The geometries tried by default: small page, large page, and the common 4K and 8K page devices.
+	 */
+	public static final String DEFAULT_CANDIDATES = "512:16,2048:64,4096:128,4096:224,8192:448";
+
+	/**
+	 * The default number of samples taken from across the image.
+	 */
+	public static final int DEFAULT_SAMPLES = 64;
+
+	/**
+	 * The size of each sample.
+	 */
+	private static final int SAMPLE_SIZE = 256 * 1024;
+
+	/**
+	 * The size of each sample of the spare area of an image with spares at the end.
+	 */
+	private static final int SPARE_SAMPLE_SIZE = 64 * 1024;
+
+	private final ImageSource image;
+	private final long length;
+	private final int samples;
+	private final List<Sample> pageSamples = new ArrayList<Sample>();
+
+	/**
+	 * Create a detector for an image.
+	 *
+	 * @param is The image.
+	 * @param samples The number of samples to take from across the image.
+	 * @throws IOException
+	 */
+	public GeometryDetector(RandomAccessFile is, int samples) throws IOException {
+		this(new FileImageSource(is), samples);
+	}
+
+	/**
+	 * Create a detector for an image however it is stored.
+	 *
+	 * @param image The image.
+	 * @param samples The number of samples to take from across the image.
+	 * @throws IOException
+	 */
+	public GeometryDetector(ImageSource image, int samples) throws IOException {
+		if (samples < 1) {
+			throw new IllegalArgumentException("At least one sample is required");
+		}
+		this.image = image;
+		this.length = image.size();
+		this.samples = samples;
+
+		for (int i = 0; i < samples; i++) {
+			Sample sample = readSample(length * i / samples, SAMPLE_SIZE);
+			if (sample != null) {
+				pageSamples.add(sample);
+			}
+		}
+	}
+
+	/**
+	 * Score each candidate geometry, with its spares both inband and at the end.
+	 *
+	 * @param geometries The candidate page and spare sizes. Their spare locations are ignored.
+	 * @return The candidates, best first.
+	 * @throws IOException
+	 */
+	public List<Candidate> detect(List<NandGeometry> geometries) throws IOException {
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (NandGeometry g : geometries) {
+			candidates.add(scoreInBand(new NandGeometry(g.getPageDataSize(), g.getSpareSize(), false)));
+			candidates.add(scoreAtEnd(new NandGeometry(g.getPageDataSize(), g.getSpareSize(), true)));
+		}
+
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate a, Candidate b) {
+				if (a.isWholeChunks() != b.isWholeChunks()) {
+					return a.isWholeChunks() ? -1 : 1;
+				}
+				return Double.compare(b.getScore(), a.getScore());
+			}
+		});
+		return candidates;
+	}
+
+	private Candidate scoreInBand(NandGeometry g) {
+		int chunkSize = g.getChunkSize();
+		Statistics stats = new Statistics();
+		for (Sample sample : pageSamples) {
+			byte[] data = sample.data;
+			int column = (int) (sample.offset % chunkSize);
+			for (int i = 0; i < data.length; i++) {
+				stats.count(data[i], column >= g.getPageDataSize());
+				if (++column == chunkSize) {
+					column = 0;
+				}
+			}
+			stats.correlate(data, chunkSize);
+		}
+		return new Candidate(g, stats.getPeriodicity(), stats.getContrast(), length % chunkSize == 0);
+	}
+
+	private Candidate scoreAtEnd(NandGeometry g) throws IOException {
+		long chunks = length / g.getChunkSize();
+		long spareStart = chunks * g.getPageDataSize();
+		long spareLength = chunks * g.getSpareSize();
+		Statistics stats = new Statistics();
+
+		for (Sample sample : pageSamples) {
+			int pageBytes = (int) Math.max(0, Math.min(sample.data.length, spareStart - sample.offset));
+			for (int i = 0; i < pageBytes; i++) {
+				stats.count(sample.data[i], false);
+			}
+		}
+
+		if (g.getSpareSize() > 0) {
+			for (int i = 0; i < samples; i++) {
+				long offset = spareStart + spareLength * i / samples;
+				int size = (int) Math.min(SPARE_SAMPLE_SIZE, spareStart + spareLength - offset);
+				Sample sample = readSample(offset, size);
+				if (sample == null) {
+					continue;
+				}
+				for (byte b : sample.data) {
+					stats.count(b, true);
+				}
+				stats.correlate(sample.data, g.getSpareSize());
+			}
+		}
+		return new Candidate(g, stats.getPeriodicity(), stats.getContrast(),
+				length % g.getChunkSize() == 0);
+	}
+
+	private Sample readSample(long offset, int size) throws IOException {
+		size = (int) Math.min(size, length - offset);
+		if (size <= 0) {
+			return null;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		long pos = offset;
+		while (buf.hasRemaining()) {
+			int read = image.read(buf, pos);
+			if (read < 0) {
+				break;
+			}
+			pos += read;
+		}
+		if (buf.position() < size) {
+			return null;
+		}
+		return new Sample(offset, buf.array());
+	}
+
+	/**
+	 * A sample of the image.
+	 */
+	private static class Sample {
+		final long offset;
+		final byte[] data;
+
+		Sample(long offset, byte[] data) {
+			this.offset = offset;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * The byte distributions and lag matches accumulated for one candidate.
+	 */
+	private static class Statistics {
+		private final long[] spareHistogram = new long[256];
+		private final long[] pageHistogram = new long[256];
+		private long spareBytes;
+		private long pageBytes;
+		private long matches;
+		private long halfMatches;
+		private long compared;
+
+		void count(byte b, boolean spare) {
+			if (spare) {
+				spareHistogram[b & 0xff]++;
+				spareBytes++;
+			} else {
+				pageHistogram[b & 0xff]++;
+				pageBytes++;
+			}
+		}
+
+		/**
+		 * Count how often bytes equal the byte one period earlier, and the byte half a period earlier.
+		 */
+		void correlate(byte[] data, int period) {
+			int half = Math.max(1, period / 2);
+			for (int i = period; i < data.length; i++) {
+				byte b = data[i];
+				if (b == data[i - period]) {
+					matches++;
+				}
+				if (b == data[i - half]) {
+					halfMatches++;
+				}
+				compared++;
+			}
+		}
+
+		double getPeriodicity() {
+			if (compared == 0) {
+				return 0;
+			}
+			return (double) (matches - halfMatches) / compared;
+		}
+
+		double getContrast() {
+			if (spareBytes == 0 || pageBytes == 0) {
+				return 0;
+			}
+			double distance = 0;
+			for (int i = 0; i < 256; i++) {
+				distance += Math.abs((double) spareHistogram[i] / spareBytes - (double) pageHistogram[i] / pageBytes);
+			}
+			return distance / 2;
+		}
+	}
+
+	/**
+	 * A scored candidate geometry.
+	 */
+	public static class Candidate {
+		private final NandGeometry geometry;
+		private final double periodicity;
+		private final double contrast;
+		private final boolean wholeChunks;
+
+		Candidate(NandGeometry geometry, double periodicity, double contrast, boolean wholeChunks) {
+			this.geometry = geometry;
+			this.periodicity = periodicity;
+			this.contrast = contrast;
+			this.wholeChunks = wholeChunks;
+		}
+
+		/**
+		 * Get the candidate geometry.
+		 *
+		 * @return The geometry.
+		 */
+		public NandGeometry getGeometry() {
+			return geometry;
+		}
+
+		/**
+		 * Get the score: the sum of the periodicity and the contrast.
+		 *
+		 * @return The score, higher is better.
+		 */
+		public double getScore() {
+			return periodicity + contrast;
+		}
+
+		/**
+		 * Get the periodicity: the excess of matches one period apart over the matches half a period apart.
+		 *
+		 * @return The periodicity, from -1 to 1.
+		 */
+		public double getPeriodicity() {
+			return periodicity;
+		}
+
+		/**
+		 * Get the contrast: the total variation distance between the spare and page data byte distributions.
+		 *
+		 * @return The contrast, from 0 to 1.
+		 */
+		public double getContrast() {
+			return contrast;
+		}
+
+		/**
+		 * Is the image a whole number of chunks of this geometry.
+		 *
+		 * @return True if the image size is a multiple of the chunk size.
+		 */
+		public boolean isWholeChunks() {
+			return wholeChunks;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder s = new StringBuilder(String.format("%-16s score %.3f (periodicity %.3f, contrast %.3f)",
+					geometry, getScore(), periodicity, contrast));
+			if (!wholeChunks) {
+				s.append(" partial chunk");
+			}
+			return s.toString();
+		}
+	}
+}
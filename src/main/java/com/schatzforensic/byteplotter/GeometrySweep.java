@@ -0,0 +1,253 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.byteplotter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.schatzforensic.nanddevice.BufferPool;
+import com.schatzforensic.nanddevice.ImageSource;
+import com.schatzforensic.nanddevice.NANDDevice;
+import com.schatzforensic.nanddevice.NandGeometry;
+import com.schatzforensic.views.PartitionedBytePlot;
+
+/**
+ * Byte plots a NAND image under several page geometry hypotheses at once. The image is read once, sequentially, in
+ * large windows which every hypothesis renders its chunks from. Hypotheses with the spares at the end of the image
+ * also read their spares, which are a small fraction of the image.
+ * <p>
+ * Images are named file-userdata-spare-layout.NNN.png, and are numbered as NANDBytePlot numbers them.
+ */
+public class GeometrySweep {
+
+	/**
+	 * The size of the window read from the image at a time.
+	 */
+	private static final int WINDOW_SIZE = 16 * 1024 * 1024;
+
+	private final File source;
+	private final int tiling;
+	private final PlotOptions options;
+
+	public GeometrySweep(String file, List<NandGeometry> hypotheses, int tiling, PlotOptions options) {
+		this.source = new File(file);
+		this.tiling = tiling;
+		this.options = options;
+
+		try {
+			ImageSource image = ImageSource.open(source);
+			try {
+				sweep(image, hypotheses);
+			} finally {
+				image.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void sweep(ImageSource image, List<NandGeometry> hypotheses) throws IOException {
+		long length = image.size();
+
+		int largestRecord = 0;
+		List<Hypothesis> all = new ArrayList<Hypothesis>();
+		List<Hypothesis> active = new ArrayList<Hypothesis>();
+		ByteBuffer window = null;
+		try {
+			for (NandGeometry geometry : hypotheses) {
+				Hypothesis h = new Hypothesis(geometry, geometry.open(image, options.getBlockSize()));
+				all.add(h);
+				if (length % geometry.getChunkSize() != 0) {
+					System.err.println("Warning: size of file isnt a multiple of page size for " + geometry);
+				}
+				largestRecord = Math.max(largestRecord, h.recordSize);
+				if (!h.isDone()) {
+					active.add(h);
+				}
+			}
+
+			window = BufferPool.SHARED.acquire(Math.max(WINDOW_SIZE, largestRecord));
+			readWindows(image, window, active);
+		} finally {
+			if (window != null) {
+				BufferPool.SHARED.release(window);
+			}
+			for (Hypothesis h : all) {
+				h.release();
+			}
+		}
+	}
+
+	private void readWindows(ImageSource image, ByteBuffer window, List<Hypothesis> active) throws IOException {
+		long length = image.size();
+		while (!active.isEmpty()) {
+			// Start the window at the first record any hypothesis still needs, so none straddle the window start.
+			long windowStart = Long.MAX_VALUE;
+			for (Hypothesis h : active) {
+				windowStart = Math.min(windowStart, h.nextOffset());
+			}
+
+			window.clear();
+			window.limit((int) Math.min(window.capacity(), length - windowStart));
+			long pos = windowStart;
+			while (window.hasRemaining()) {
+				int read = image.read(window, pos);
+				if (read < 0) {
+					break;
+				}
+				pos += read;
+			}
+			long windowEnd = windowStart + window.position();
+
+			for (int i = active.size() - 1; i >= 0; i--) {
+				Hypothesis h = active.get(i);
+				h.consume(window, windowStart, windowEnd);
+				if (h.isDone()) {
+					active.remove(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The rendering state of one geometry hypothesis.
+	 */
+	private class Hypothesis {
+		private final NandGeometry geometry;
+		private final NANDDevice device;
+		private final int userDataSize;
+		private final int spareSize;
+		private final int pageSize;
+		/**
+		 * The size of the records read from the window: a whole chunk inband, or the page data for the end layout.
+		 */
+		private final int recordSize;
+		private final long countChunks;
+		private final int chunksPerImage;
+		private final ByteBuffer spares;
+
+		private long nextChunk;
+		private int fileNo;
+		private PartitionedBytePlot plot;
+		private int chunkInImage;
+		private long chunksInImage;
+
+		Hypothesis(NandGeometry geometry, NANDDevice device) throws IOException {
+			this.geometry = geometry;
+			this.device = device;
+			this.userDataSize = geometry.getPageDataSize();
+			this.spareSize = geometry.getSpareSize();
+			this.pageSize = geometry.getChunkSize();
+			this.recordSize = geometry.isSpareNotInBand() ? userDataSize : pageSize;
+			this.countChunks = device.getSize();
+			this.chunksPerImage = options.getImageHeight() * tiling;
+			this.spares = geometry.isSpareNotInBand() ? BufferPool.SHARED.acquire((WINDOW_SIZE / userDataSize + 1)
+					* spareSize) : null;
+		}
+
+		/**
+		 * Return the buffers of the hypothesis to the pool, including the image being rendered if it was not finished.
+		 */
+		void release() {
+			if (spares != null) {
+				BufferPool.SHARED.release(spares);
+			}
+			if (plot != null) {
+				plot.release();
+				plot = null;
+			}
+		}
+
+		boolean isDone() {
+			return nextChunk >= countChunks;
+		}
+
+		long nextOffset() {
+			return nextChunk * recordSize;
+		}
+
+		/**
+		 * Render every remaining chunk whose record lies wholly within the window.
+		 */
+		void consume(ByteBuffer window, long windowStart, long windowEnd) throws IOException {
+			long lastChunk = Math.min(countChunks, windowEnd / recordSize);
+			while (nextChunk < lastChunk) {
+				if (plot == null) {
+					startImage();
+				}
+				long count = Math.min(lastChunk - nextChunk, chunksInImage - chunkInImage);
+				if (spares != null && spareSize > 0) {
+					count = Math.min(count, spares.capacity() / spareSize);
+				}
+
+				ByteBuffer records = window.duplicate();
+				records.position((int) (nextOffset() - windowStart));
+				records.limit(records.position() + (int) count * recordSize);
+				records = records.slice();
+
+				if (spares == null) {
+					plot.addBuf(chunkInImage * pageSize, records);
+				} else {
+					spares.clear();
+					spares.limit((int) count * spareSize);
+					device.readPages(nextChunk, (int) count, null, spares);
+					plot.addPages(chunkInImage, (int) count, records, spares);
+				}
+
+				nextChunk += count;
+				chunkInImage += (int) count;
+				if (chunkInImage == chunksInImage) {
+					finishImage();
+				}
+			}
+		}
+
+		private void startImage() {
+			long firstChunk = (long) chunksPerImage * fileNo;
+			int thisHeight = (int) Math.min(options.getImageHeight(), countChunks - firstChunk);
+			chunksInImage = Math.min((long) thisHeight * tiling, countChunks - firstChunk);
+			chunkInImage = 0;
+			plot = new PartitionedBytePlot(pageSize * tiling, thisHeight, userDataSize, spareSize,
+					PartitionedBytePlot.LayoutDirection.VERTICAL);
+			plot.setEncoding(options.getEncoding());
+		}
+
+		private void finishImage() throws IOException {
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(String.format("%s%s%s-%d-%d-%s.%03d.png",
+					source.getParent(), File.separator, source.getName(), userDataSize, spareSize,
+					geometry.getSpareLocation(), fileNo)));
+			try {
+				plot.render(os);
+			} finally {
+				try {
+					os.close();
+				} finally {
+					plot.release();
+				}
+			}
+			plot = null;
+			fileNo++;
+		}
+	}
+}
@@ -14,126 +14,465 @@
 
     You should have received a copy of the GNU General Public License
     along with this program.  If not, see <http://www.gnu.org/licenses/>.
-*/    	
+*/
 package com.schatzforensic.byteplotter;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
+import com.schatzforensic.nanddevice.BufferPool;
+import com.schatzforensic.nanddevice.ImageSource;
+import com.schatzforensic.nanddevice.MappedNandDevice;
 import com.schatzforensic.nanddevice.NANDDevice;
-import com.schatzforensic.nanddevice.NandInBandDevice;
-import com.schatzforensic.nanddevice.NandOOBandDevice;
+import com.schatzforensic.nanddevice.NandGeometry;
+import com.schatzforensic.nanddevice.PageIndex;
 
+/**
+ * Scans the page data of a NAND device for a set of marker patterns, reporting every occurrence by chunk and offset.
+ * The page data of consecutive chunks is scanned as one stream, so markers spanning pages are found too.
+ * <p>
+ * A page starting with the grid marker is the header line of the 2048 grid test image, and the chunk following it
+ * holds the ruler, which analyseRuler decodes to show where the FTL relocated the grid.
+ */
 public class IdentifyRelocations {
 
-	public IdentifyRelocations(String file, int userDataSize, int spareSize, boolean OOBEDevice) {
-		ByteBuffer headerLine = null;
-		try {
-			File source = Paths.get(file).toFile();
-			RandomAccessFile is = new RandomAccessFile(source, "r");
-			
-			NANDDevice fis = null;
-			if(OOBEDevice){
-				fis = new NandOOBandDevice(userDataSize, spareSize, 64, is);
-			} else {
-				fis = new NandInBandDevice(userDataSize, spareSize, 64, is);
-			}
-			int chunkSize = (userDataSize + spareSize);
-			long countChunks = is.length() / chunkSize;
+	/**
+	 * The marker at the start of the header line of the 2048 grid test image.
+	 */
+	public static final String GRID_MARKER = "http://schatzforensic.com/2048-grid-2048-label.raw";
 
-			// paramaters match size of file
-			if (source.length() % chunkSize != 0) {
-				System.err.println("Warning: size of file isnt a multiple of page size");
-			}
+	/**
+	 * The number of pages read from the device at a time.
+	 */
+	private static final int BATCH_PAGES = 256;
 
-			ByteBuffer buf = ByteBuffer.allocate(chunkSize);
-			buf.limit(userDataSize);
-			ByteBuffer page = buf.slice();
-			buf.limit(chunkSize);
-			buf.position(userDataSize);
-			ByteBuffer spare = buf.slice();
+	private final NANDDevice device;
+	private final MarkerMatcher matcher;
+	private final byte[] gridMarker = GRID_MARKER.getBytes(Charset.forName("UTF-8"));
+	private PageIndex index;
+	private int skippableFlags;
 
-			String magic = "http://schatzforensic.com/2048-grid-2048-label.raw";
-			byte[] magicbytes = magic.getBytes(Charset.forName("UTF-8"));
+	/**
+	 * Create a scanner for a device.
+	 *
+	 * @param device The device to scan.
+	 * @param markers The marker patterns to search for.
+	 */
+	public IdentifyRelocations(NANDDevice device, List<byte[]> markers) {
+		this.device = device;
+		this.matcher = new MarkerMatcher(markers);
+	}
 
-			for (long j = 0; j < countChunks; j++) {
+	/**
+	 * Create a scanner for a device which searches for the grid marker.
+	 *
+	 * @param device The device to scan.
+	 */
+	public IdentifyRelocations(NANDDevice device) {
+		this(device, Collections.singletonList(GRID_MARKER.getBytes(Charset.forName("UTF-8"))));
+	}
 
-				buf.clear();
-				page.clear();
-				spare.clear();
-				fis.readPage(j, page, spare);
+	/**
+	 * Set a page index to consult while scanning. Pages filled with a byte value none of the markers contain are
+	 * skipped rather than read, as no marker can overlap them.
+	 *
+	 * @param index The page index, or null to read every page.
+	 */
+	public void setIndex(PageIndex index) {
+		this.index = index;
+		skippableFlags = 0;
+		if (!matcher.contains((byte) 0)) {
+			skippableFlags |= PageIndex.DATA_ZERO;
+		}
+		if (!matcher.contains((byte) 0xff)) {
+			skippableFlags |= PageIndex.DATA_ERASED;
+		}
+	}
 
-				if (headerLine != null) {
-					analyse(headerLine, buf);
-					System.exit(0);
-				}
-				if (matches(page, magicbytes)) {
-					for (int f = 0; f < magicbytes.length; f++) {
-						buf.put(f, (byte) 0);
-					}
-					buf.clear();
-					headerLine = buf;
-					buf = ByteBuffer.allocate(chunkSize);
-					buf.limit(userDataSize);
-					page = buf.slice();
-					buf.limit(chunkSize);
-					buf.position(userDataSize);
-					spare = buf.slice();
+	/**
+	 * Scan the whole device, reporting each marker found in the order they occur.
+	 *
+	 * @param listener Told of each marker found.
+	 * @throws IOException
+	 */
+	public void scan(MatchListener listener) throws IOException {
+		scanRange(0, device.getSize(), listener);
+	}
+
+	/**
+	 * Scan the whole device.
+	 *
+	 * @return Every marker found, in the order they occur.
+	 * @throws IOException
+	 */
+	public List<Match> scan() throws IOException {
+		return scan(1);
+	}
+
+	/**
+	 * Scan the whole device, splitting it into ranges of chunks scanned on a fork/join pool.
+	 *
+	 * @param threads The number of threads to scan on.
+	 * @return Every marker found, in the order they occur.
+	 * @throws IOException
+	 */
+	public List<Match> scan(int threads) throws IOException {
+		List<Match> matches = new ArrayList<Match>();
+		for (Finding finding : find(threads, false)) {
+			matches.add(finding.match);
+		}
+		return matches;
+	}
+
+	/**
+	 * Scan a range of chunks. The scan runs on into the following chunks far enough to find markers which start in
+	 * the range but end beyond it, and markers starting before the range are left to the scan of the preceding range.
+	 *
+	 * @param firstChunk The first chunk of the range.
+	 * @param endChunk The chunk following the range.
+	 * @param listener Told of each marker found.
+	 * @throws IOException
+	 */
+	private void scanRange(long firstChunk, long endChunk, final MatchListener listener) throws IOException {
+		final int pageSize = device.getPageDataSize();
+		final long endPosition = endChunk * pageSize;
+		long overlapChunks = (matcher.getMaxLength() - 1 + pageSize - 1) / pageSize;
+		long lastChunk = Math.min(device.getSize(), endChunk + overlapChunks);
+		ByteBuffer data = BufferPool.SHARED.acquire(BATCH_PAGES * pageSize);
+		try {
+			scanRange(firstChunk, lastChunk, endPosition, data, listener);
+		} finally {
+			BufferPool.SHARED.release(data);
+		}
+	}
+
+	private void scanRange(long firstChunk, long lastChunk, final long endPosition, ByteBuffer data,
+			final MatchListener listener) throws IOException {
+		final int pageSize = device.getPageDataSize();
+
+		MarkerMatcher.Listener found = new MarkerMatcher.Listener() {
+			@Override
+			public void found(int pattern, long position) {
+				if (position < endPosition) {
+					listener.found(new Match(pattern, position / pageSize, (int) (position % pageSize)));
 				}
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-
-	private void analyse(ByteBuffer headerLine, ByteBuffer buf) {
-		StringBuffer translatedRuler = new StringBuffer();
-		int last = -1;
-		boolean firstrun = true;
-		int offset = 0;
-		int lastRulerOffset = 0;
-		do {
-			int u = headerLine.get();
-			int l = (0xff & buf.get());
-			int rulerOffset = (u << 8) + l;
-
-			if (firstrun) {
-				firstrun = false;
-				last = rulerOffset;
-				translatedRuler.append(String.format("Offset %d: ", offset));
-				translatedRuler.append(String.format("%d", rulerOffset));
-				lastRulerOffset = rulerOffset;
-			} else {
-				if (rulerOffset != last + 1) {
-					translatedRuler.append(String.format("-%d (%d) \r\nOffset %d: %d ", last,
-							(last - lastRulerOffset + 1), offset, rulerOffset));
-					lastRulerOffset = rulerOffset;
+		};
+
+		int state = MarkerMatcher.START;
+		for (long chunk = firstChunk; chunk < lastChunk;) {
+			if (isSkippable(chunk)) {
+				state = MarkerMatcher.START;
+				chunk++;
+				continue;
+			}
+			int count = 1;
+			while (count < BATCH_PAGES && chunk + count < lastChunk && !isSkippable(chunk + count)) {
+				count++;
+			}
+			if (device instanceof MappedNandDevice) {
+				// Scan each page in place in the mapping rather than copying it out first.
+				MappedNandDevice mapped = (MappedNandDevice) device;
+				for (long c = chunk; c < chunk + count; c++) {
+					state = matcher.scan(mapped.getPageSlice(c), 0, pageSize, state, c * pageSize, found);
 				}
-				last = rulerOffset;
+			} else {
+				data.clear();
+				data.limit(count * pageSize);
+				device.readPages(chunk, count, data, null);
+				state = matcher.scan(data.array(), 0, count * pageSize, state, chunk * pageSize, found);
 			}
-			offset++;
+			chunk += count;
+		}
+	}
 
-		} while (headerLine.remaining() > 0);
+	private boolean isSkippable(long chunk) throws IOException {
+		return index != null && (index.getFlags(chunk) & skippableFlags) != 0;
+	}
 
-		System.out.println(translatedRuler.toString());
+	/**
+	 * Find the markers on the whole device, and optionally decode the rulers following grid header lines.
+	 *
+	 * @param threads The number of threads to scan on.
+	 * @param analyse True to decode the rulers.
+	 * @return The markers found, in the order they occur.
+	 * @throws IOException
+	 */
+	private List<Finding> find(int threads, boolean analyse) throws IOException {
+		long countChunks = device.getSize();
+		if (threads <= 1) {
+			return new ScanTask(0, countChunks, Long.MAX_VALUE, analyse).scan();
+		}
+		// Split finely enough that every thread stays busy, but not so finely the overlaps add up.
+		long leafChunks = Math.max(BATCH_PAGES * 4, countChunks / (threads * 8));
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return pool.invoke(new ScanTask(0, countChunks, leafChunks, analyse));
+		} catch (ScanFailure e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Is a match the header line of the grid test image, which is followed by a ruler.
+	 *
+	 * @param match The match.
+	 * @return True if the match is the grid marker at the start of a page.
+	 */
+	public boolean isGridHeader(Match match) {
+		return match.getOffset() == 0 && Arrays.equals(matcher.getPattern(match.getPattern()), gridMarker);
+	}
+
+	/**
+	 * Scan the whole device, printing each marker found and the rulers following any grid header lines.
+	 *
+	 * @param out Where to print the results.
+	 * @throws IOException
+	 */
+	public void report(PrintStream out) throws IOException {
+		report(out, 1);
+	}
 
+	/**
+	 * Scan the whole device on a fork/join pool, printing each marker found and the rulers following any grid header
+	 * lines as text in the order they occur.
+	 *
+	 * @param out Where to print the results.
+	 * @param threads The number of threads to scan on.
+	 * @throws IOException
+	 */
+	public void report(PrintStream out, int threads) throws IOException {
+		report(out, threads, ReportFormat.TEXT);
 	}
 
-	private boolean matches(ByteBuffer page, byte[] magicbytes) {
-		byte[] pageBytes = page.array();
-		for (int i = page.arrayOffset(); i < magicbytes.length; i++) {
-			if (magicbytes[i] != pageBytes[page.arrayOffset() + i])
-				return false;
+	/**
+	 * Scan the whole device on a fork/join pool, printing each marker found and the rulers following any grid header
+	 * lines in the order they occur.
+	 *
+	 * @param out Where to print the results.
+	 * @param threads The number of threads to scan on.
+	 * @param format The format to print the results in.
+	 * @throws IOException
+	 */
+	public void report(PrintStream out, int threads, ReportFormat format) throws IOException {
+		List<Finding> findings = find(threads, true);
+		StringBuilder text = new StringBuilder();
+		format.appendHeader(text);
+		boolean first = true;
+		for (Finding finding : findings) {
+			format.appendFinding(text, finding.match, finding.ruler, first);
+			first = false;
+			out.append(text);
+			text.setLength(0);
+		}
+		format.appendFooter(text);
+		out.append(text);
+		out.flush();
+	}
+
+	/**
+	 * Decode the ruler following a grid header line.
+	 *
+	 * @param headerChunk The chunk holding the header line.
+	 * @return The runs of consecutive grid offsets.
+	 * @throws IOException
+	 */
+	public RulerAnalysis analyseRuler(long headerChunk) throws IOException {
+		int chunkSize = device.getPageDataSize() + device.getSpareSize();
+		ByteBuffer headerLine = BufferPool.SHARED.acquire(chunkSize);
+		ByteBuffer ruler = BufferPool.SHARED.acquire(chunkSize);
+		try {
+			readChunk(headerChunk, headerLine);
+			for (int f = 0; f < gridMarker.length; f++) {
+				headerLine.put(f, (byte) 0);
+			}
+			readChunk(headerChunk + 1, ruler);
+			return new RulerAnalysis(headerChunk, headerLine.array(), ruler.array(), chunkSize);
+		} finally {
+			BufferPool.SHARED.release(headerLine);
+			BufferPool.SHARED.release(ruler);
 		}
-		return true;
 	}
 
-	public static void main(String[] args) {
-		new IdentifyRelocations(args[0], Short.parseShort(args[1]), Short.parseShort(args[2]), true);
+	/**
+	 * Read a chunk into a buffer, its page data followed by its spare.
+	 */
+	private void readChunk(long chunk, ByteBuffer buf) throws IOException {
+		buf.clear();
+		buf.limit(device.getPageDataSize());
+		device.readPage(chunk, buf, null);
+		buf.limit(buf.capacity());
+		device.readPage(chunk, null, buf);
+		buf.clear();
+	}
+
+	/**
+	 * A marker found on the device.
+	 */
+	public static class Match {
+		private final int pattern;
+		private final long chunk;
+		private final int offset;
+
+		Match(int pattern, long chunk, int offset) {
+			this.pattern = pattern;
+			this.chunk = chunk;
+			this.offset = offset;
+		}
+
+		/**
+		 * Get the marker found.
+		 *
+		 * @return The index of the marker pattern.
+		 */
+		public int getPattern() {
+			return pattern;
+		}
+
+		/**
+		 * Get the chunk the marker starts in.
+		 *
+		 * @return The chunk number.
+		 */
+		public long getChunk() {
+			return chunk;
+		}
+
+		/**
+		 * Get the offset of the marker in the page data of its chunk.
+		 *
+		 * @return The offset.
+		 */
+		public int getOffset() {
+			return offset;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Marker %d at chunk %d offset %d", pattern, chunk, offset);
+		}
+	}
+
+	/**
+	 * A marker found on the device, with the ruler it heads if it is a grid header line.
+	 */
+	private static class Finding {
+		final Match match;
+		final RulerAnalysis ruler;
+
+		Finding(Match match, RulerAnalysis ruler) {
+			this.match = match;
+			this.ruler = ruler;
+		}
+	}
+
+	/**
+	 * Carries an IOException out of a fork/join task.
+	 */
+	private static class ScanFailure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ScanFailure(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+
+	/**
+	 * Finds the markers in a range of chunks, splitting the range in two while it is larger than a leaf. The rulers
+	 * are decoded by the task which finds their header line, reading the ruler chunk itself even when it lies in the
+	 * following range, and the halves' findings are joined in chunk order.
+	 */
+	private class ScanTask extends RecursiveTask<List<Finding>> {
+		private static final long serialVersionUID = 1L;
+
+		private final long firstChunk;
+		private final long endChunk;
+		private final long leafChunks;
+		private final boolean analyse;
+
+		ScanTask(long firstChunk, long endChunk, long leafChunks, boolean analyse) {
+			this.firstChunk = firstChunk;
+			this.endChunk = endChunk;
+			this.leafChunks = leafChunks;
+			this.analyse = analyse;
+		}
+
+		@Override
+		protected List<Finding> compute() {
+			if (endChunk - firstChunk > leafChunks) {
+				long middle = firstChunk + (endChunk - firstChunk) / 2;
+				ScanTask first = new ScanTask(firstChunk, middle, leafChunks, analyse);
+				ScanTask second = new ScanTask(middle, endChunk, leafChunks, analyse);
+				first.fork();
+				List<Finding> findings = second.compute();
+				List<Finding> joined = first.join();
+				joined.addAll(findings);
+				return joined;
+			}
+			try {
+				return scan();
+			} catch (IOException e) {
+				throw new ScanFailure(e);
+			}
+		}
+
+		List<Finding> scan() throws IOException {
+			final long countChunks = device.getSize();
+			final List<Match> matches = new ArrayList<Match>();
+			scanRange(firstChunk, endChunk, new MatchListener() {
+				@Override
+				public void found(Match match) {
+					matches.add(match);
+				}
+			});
+			List<Finding> findings = new ArrayList<Finding>(matches.size());
+			for (Match match : matches) {
+				RulerAnalysis ruler = null;
+				if (analyse && isGridHeader(match) && match.getChunk() + 1 < countChunks) {
+					ruler = analyseRuler(match.getChunk());
+				}
+				findings.add(new Finding(match, ruler));
+			}
+			return findings;
+		}
+	}
+
+	/**
+	 * Receives the markers found by a scan.
+	 */
+	public interface MatchListener {
+		/**
+		 * A marker was found.
+		 *
+		 * @param match Where the marker was found.
+		 */
+		public void found(Match match);
+	}
+
+	public static void main(String[] args) throws IOException {
+		ImageSource is = ImageSource.open(new File(args[0]));
+		try {
+			NandGeometry geometry = new NandGeometry(Short.parseShort(args[1]), Short.parseShort(args[2]), true);
+			new IdentifyRelocations(geometry.open(is, NandGeometry.DEFAULT_BLOCK_SIZE)).report(System.out);
+		} finally {
+			is.close();
+		}
 	}
 
 }
@@ -17,6 +17,17 @@
 */ 
 package com.schatzforensic.byteplotter;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -25,6 +36,18 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import com.schatzforensic.ftl.LayoutDecoder;
+import com.schatzforensic.ftl.LogicalMap;
+import com.schatzforensic.ftl.LogicalNandDevice;
+import com.schatzforensic.ftl.SpareLayout;
+import com.schatzforensic.nanddevice.ImageSource;
+import com.schatzforensic.nanddevice.NANDDevice;
+import com.schatzforensic.nanddevice.NandGeometry;
+import com.schatzforensic.nanddevice.PageIndex;
+import com.schatzforensic.views.Downsampling;
+import com.schatzforensic.views.OverviewPlot;
+import com.schatzforensic.views.PngEncoding;
+
 /**
  * Main application entry point.
  */
@@ -32,6 +55,12 @@ public class Main {
 
 	private final String APPLICATON_HEADER = "NAND Byte Plotter";
 
+	/**
+	 * The plot options a geometry sweep does not use, as it renders plain byte plots one image at a time in one pass.
+	 */
+	private static final String[] SWEEP_IGNORED = { "mmap", "threads", "stream", "pipeline", "pyramid", "overview",
+			"erased", "index", "bytes-per-pixel", "aggregate", "progress", "summary" };
+
 	/**
 	 * Application entry point.
 	 * 
@@ -48,12 +77,27 @@ public class Main {
 	 */
 	@SuppressWarnings("static-access")
 	public void run(String[] args) {
-		System.out.println(APPLICATON_HEADER);
+		System.err.println(APPLICATON_HEADER);
 
 		// Parse the CLI to find out if we are attempting to identify the relocations, or just plotting the NAND.
 		CommandLineParser parser = new BasicParser();
 		Options options = new Options();
-		//options.addOption("l", "locate-relocations", false, "Attempt to location relocations the NAND");
+		options.addOption(OptionBuilder.withLongOpt("locate-relocations")
+				.withDescription("Attempt to locate relocations in the NAND").create());
+		options.addOption(OptionBuilder.withLongOpt("marker")
+				.withDescription("search for the marker TEXT when locating relocations, may be repeated (default the "
+						+ "grid test image header)").hasArg().withArgName("TEXT").create());
+		options.addOption(OptionBuilder.withLongOpt("map-spares")
+				.withDescription("decode the spares with --spare-layout and report the logical page map").create());
+		options.addOption(OptionBuilder.withLongOpt("logical")
+				.withDescription("plot, or locate relocations in, the logical device reconstructed from the spares "
+						+ "with --spare-layout; not with --sweep or --build-index").create());
+		options.addOption(OptionBuilder.withLongOpt("spare-layout")
+				.withDescription("the FTL fields of each spare, as FIELD=OFFSET:LENGTH[:le|be],... where FIELD is bad, "
+						+ "ecc, block, page or seq, each within the spare").hasArg().withArgName("LAYOUT").create());
+		options.addOption(OptionBuilder.withLongOpt("report-format")
+				.withDescription("report located relocations as FORMAT: text (default), csv or json").hasArg()
+				.withArgName("FORMAT").create());
 		options.addOption("p", "byteplot", false, "Byte Plot the NAND file (default operation)");
 		options.addOption("?", "help", false, "print this message");
 		options.addOption("v", "version", false, "version information");
@@ -66,6 +110,62 @@ public class Main {
 				.hasArg().withArgName("SIZE").create());
 		options.addOption(OptionBuilder.withLongOpt("tile-size").withDescription("use SIZE-byte tile").hasArg()
 				.withArgName("SIZE").create());
+		options.addOption(OptionBuilder.withLongOpt("pages-per-block")
+				.withDescription("the device has N pages in each erase block (default "
+						+ NandGeometry.DEFAULT_BLOCK_SIZE + ")").hasArg().withArgName("N").create());
+		options.addOption("m", "mmap", false, "Memory map the NAND image rather than reading it");
+		options.addOption(OptionBuilder.withLongOpt("threads").withDescription("render images on N threads")
+				.hasArg().withArgName("N").create());
+		options.addOption(OptionBuilder.withLongOpt("pyramid")
+				.withDescription("render the whole device as a Deep Zoom tile pyramid").create());
+		options.addOption("s", "stream", false, "Stream each image to disk a row at a time to bound memory use");
+		options.addOption(OptionBuilder.withLongOpt("image-height").withDescription("use images of up to HEIGHT pixels")
+				.hasArg().withArgName("HEIGHT").create());
+		options.addOption(OptionBuilder.withLongOpt("png-level").withDescription("deflate PNGs at LEVEL 0-9")
+				.hasArg().withArgName("LEVEL").create());
+		options.addOption(OptionBuilder.withLongOpt("png-filter")
+				.withDescription("PNG row FILTER: none (default), sub, up, average, paeth or adaptive").hasArg()
+				.withArgName("FILTER").create());
+		options.addOption(OptionBuilder.withLongOpt("png-threads").withDescription("deflate each PNG on N threads")
+				.hasArg().withArgName("N").create());
+		options.addOption(OptionBuilder.withLongOpt("sweep")
+				.withDescription("plot each of a comma separated list of USERDATA:SPARE[:inband|end] geometries in "
+						+ "one pass over the file").hasArg().withArgName("GEOMETRIES").create());
+		options.addOption(OptionBuilder.withLongOpt("detect-geometry")
+				.withDescription("rank a comma separated list of USERDATA:SPARE geometries (default "
+						+ GeometryDetector.DEFAULT_CANDIDATES + ") by sampling the file").hasOptionalArg()
+				.withArgName("GEOMETRIES").create());
+		options.addOption(OptionBuilder.withLongOpt("erased")
+				.withDescription("plot erased and zeroed chunks by MODE: plot (default), placeholder or elide")
+				.hasArg().withArgName("MODE").create());
+		options.addOption(OptionBuilder.withLongOpt("build-index")
+				.withDescription("write a per page statistics index for the file, for use with --index").create());
+		options.addOption(OptionBuilder.withLongOpt("index")
+				.withDescription("consult the page index to skip reading filled and erased pages").create());
+		options.addOption(OptionBuilder.withLongOpt("bytes-per-pixel")
+				.withDescription("reduce each N bytes of page data and spare to one pixel").hasArg().withArgName("N")
+				.create());
+		options.addOption(OptionBuilder.withLongOpt("aggregate")
+				.withDescription("how --bytes-per-pixel combines bytes: mean (default), min, max or entropy").hasArg()
+				.withArgName("AGGREGATE").create());
+		options.addOption(OptionBuilder.withLongOpt("pipeline")
+				.withDescription("overlap reading, drawing and encoding on separate threads, one image at a time in "
+						+ "memory; not with --threads N or --stream").create());
+		options.addOption(OptionBuilder.withLongOpt("progress")
+				.withDescription("print progress to stderr every SECONDS (default 5)").hasOptionalArg()
+				.withArgName("SECONDS").create());
+		options.addOption(OptionBuilder.withLongOpt("summary")
+				.withDescription("write page counts and phase timings of the plot as JSON to FILE, or - for stdout")
+				.hasArg().withArgName("FILE").create());
+		options.addOption(OptionBuilder.withLongOpt("overview")
+				.withDescription("render a comma separated list of whole device overviews in place of the plot: "
+						+ "entropy, byte-class or spare-diff").hasArg().withArgName("MODES").create());
+		options.addOption(OptionBuilder.withLongOpt("overview-width")
+				.withDescription("width of the overview images in pixels (default 1024)").hasArg().withArgName("N")
+				.create());
+		options.addOption(OptionBuilder.withLongOpt("overview-bytes")
+				.withDescription("bytes of page data per pixel of the byte-class overview (default 256)").hasArg()
+				.withArgName("N").create());
 
 		try {
 			// parse the command line arguments
@@ -73,8 +173,19 @@ public class Main {
 
 			// Mandatory
 			String filename = getString(line, "file");
-			int userDataSize = getInteger(line, "userdata-size");
-			int spareSize = getInteger(line, "spare-size");
+			List<NandGeometry> sweep = null;
+			int userDataSize = 0;
+			int spareSize = 0;
+			if (line.hasOption("detect-geometry")) {
+				String candidates = line.getOptionValue("detect-geometry", GeometryDetector.DEFAULT_CANDIDATES);
+				detectGeometry(filename, getGeometries(candidates, "detect-geometry"));
+				return;
+			} else if (line.hasOption("sweep")) {
+				sweep = getGeometries(getString(line, "sweep"), "sweep");
+			} else {
+				userDataSize = getInteger(line, "userdata-size");
+				spareSize = getInteger(line, "spare-size");
+			}
 
 			// Optional
 			boolean spareNotInband = true;
@@ -91,10 +202,88 @@ public class Main {
 				}
 			}
 			
-			boolean plot = true;
-//			if (line.hasOption("l")) {
-//				plot = false;
-//			}
+			PlotOptions plotOptions = new PlotOptions();
+			plotOptions.setMemoryMapped(line.hasOption("mmap"));
+			if (line.hasOption("threads")) {
+				int threads = getInteger(line, "threads");
+				if (threads < 1) {
+					throw new ParseException("threads");
+				}
+				plotOptions.setThreads(threads);
+			}
+			if (line.hasOption("pages-per-block")) {
+				int blockSize = getInteger(line, "pages-per-block");
+				if (blockSize < 1) {
+					throw new ParseException("pages-per-block");
+				}
+				plotOptions.setBlockSize(blockSize);
+			}
+			plotOptions.setStreaming(line.hasOption("stream"));
+			plotOptions.setPipelined(line.hasOption("pipeline"));
+			if (plotOptions.isPipelined() && (plotOptions.isStreaming() || plotOptions.getThreads() > 1)) {
+				// The pipeline draws each image whole on one thread, so would silently drop either of these.
+				throw new ParseException("pipeline");
+			}
+			plotOptions.setPyramid(line.hasOption("pyramid"));
+			if (line.hasOption("image-height")) {
+				int imageHeight = getInteger(line, "image-height");
+				if (imageHeight < 1) {
+					throw new ParseException("image-height");
+				}
+				plotOptions.setImageHeight(imageHeight);
+			}
+			plotOptions.setEncoding(getEncoding(line));
+			if (line.hasOption("erased")) {
+				try {
+					plotOptions.setErased(PlotOptions.ErasedChunks.valueOf(line.getOptionValue("erased").toUpperCase()));
+				} catch (IllegalArgumentException e) {
+					throw new ParseException("erased");
+				}
+			}
+			if (line.hasOption("bytes-per-pixel")) {
+				int bytesPerPixel = getInteger(line, "bytes-per-pixel");
+				if (bytesPerPixel < 1) {
+					throw new ParseException("bytes-per-pixel");
+				}
+				Downsampling.Aggregate aggregate = Downsampling.Aggregate.MEAN;
+				if (line.hasOption("aggregate")) {
+					try {
+						aggregate = Downsampling.Aggregate.valueOf(line.getOptionValue("aggregate").toUpperCase());
+					} catch (IllegalArgumentException e) {
+						throw new ParseException("aggregate");
+					}
+				}
+				plotOptions.setDownsampling(new Downsampling(bytesPerPixel, aggregate));
+			}
+			if (line.hasOption("progress")) {
+				int seconds = 5;
+				if (line.getOptionValue("progress") != null) {
+					seconds = getInteger(line, "progress");
+				}
+				if (seconds < 1) {
+					throw new ParseException("progress");
+				}
+				plotOptions.setProgressInterval(seconds * 1000L);
+			}
+			if (line.hasOption("overview")) {
+				plotOptions.setOverviews(getOverviews(getString(line, "overview")));
+			}
+			if (line.hasOption("overview-width")) {
+				int width = getInteger(line, "overview-width");
+				if (width < 1) {
+					throw new ParseException("overview-width");
+				}
+				plotOptions.setOverviewWidth(width);
+			}
+			if (line.hasOption("overview-bytes")) {
+				int bytes = getInteger(line, "overview-bytes");
+				if (bytes < 1) {
+					throw new ParseException("overview-bytes");
+				}
+				plotOptions.setOverviewBytesPerPixel(bytes);
+			}
+
+			boolean plot = !line.hasOption("locate-relocations");
 
 			// Help and Version.
 			if (line.hasOption("v")) {
@@ -106,11 +295,72 @@ public class Main {
 				System.exit(0);
 			}
 
-			if (plot) {
-				int tile = getInteger(line, "tile-size");
-				new NANDBytePlot(filename, userDataSize, spareSize, tile, spareNotInband);
-			} else {
-				new IdentifyRelocations(filename, userDataSize, spareSize, spareNotInband);
+			if (line.hasOption("map-spares")) {
+				LogicalMap map = openLogicalMap(filename, new NandGeometry(userDataSize, spareSize, spareNotInband),
+						plotOptions.getBlockSize(), getSpareLayout(line, spareSize));
+				if (map != null) {
+					map.printSummary(System.out);
+				}
+				return;
+			}
+			if (line.hasOption("logical") && (sweep != null || line.hasOption("build-index"))) {
+				System.err.println("A logical page map is built for one geometry and the page index describes physical "
+						+ "pages, so --logical is not used with --sweep or --build-index");
+			} else if (line.hasOption("logical")) {
+				LogicalMap map = openLogicalMap(filename, new NandGeometry(userDataSize, spareSize, spareNotInband),
+						plotOptions.getBlockSize(), getSpareLayout(line, spareSize));
+				if (map == null) {
+					return;
+				}
+				plotOptions.setLogicalMap(map);
+			}
+			if (sweep != null) {
+				StringBuilder ignored = new StringBuilder();
+				for (String option : SWEEP_IGNORED) {
+					if (line.hasOption(option)) {
+						ignored.append(ignored.length() > 0 ? ", --" : "--").append(option);
+					}
+				}
+				if (ignored.length() > 0) {
+					System.err.println("A sweep renders plain byte plots of each geometry in one pass, so these options "
+							+ "are not used with --sweep: " + ignored);
+				}
+			}
+			if (line.hasOption("build-index")) {
+				buildIndex(filename, new NandGeometry(userDataSize, spareSize, spareNotInband),
+						plotOptions.getBlockSize());
+				return;
+			}
+			PageIndex index = null;
+			if (line.hasOption("index") && sweep == null && plotOptions.getLogicalMap() != null) {
+				System.err.println("The page index describes physical pages, so is not used for the logical view");
+			} else if (line.hasOption("index") && sweep == null) {
+				index = openIndex(filename, new NandGeometry(userDataSize, spareSize, spareNotInband));
+				if (index == null) {
+					return;
+				}
+				plotOptions.setIndex(index);
+			}
+
+			try {
+				if (plot) {
+					int tile = getInteger(line, "tile-size");
+					if (sweep != null) {
+						new GeometrySweep(filename, sweep, tile, plotOptions);
+					} else {
+						NANDBytePlot plotter = new NANDBytePlot(filename, userDataSize, spareSize, tile,
+								spareNotInband, plotOptions);
+						if (line.hasOption("summary")) {
+							writeSummary(line.getOptionValue("summary"), plotter.getStatistics());
+						}
+					}
+				} else {
+					locateRelocations(filename, new NandGeometry(userDataSize, spareSize, spareNotInband),
+							plotOptions.getBlockSize(), getMarkers(line), plotOptions.getThreads(),
+							getReportFormat(line), index, plotOptions.getLogicalMap(), plotOptions.isMemoryMapped());
+				}
+			} finally {
+				closeIndex(index);
 			}
 
 		} catch (ParseException  exp) {
@@ -124,6 +374,219 @@ public class Main {
 		}
 	}
 
+	private PngEncoding getEncoding(CommandLine line) throws ParseException {
+		int level = PngEncoding.DEFAULT.getLevel();
+		if (line.hasOption("png-level")) {
+			level = getInteger(line, "png-level");
+			if (level < 0 || level > 9) {
+				throw new ParseException("png-level");
+			}
+		}
+
+		PngEncoding.Filter filter = PngEncoding.DEFAULT.getFilter();
+		if (line.hasOption("png-filter")) {
+			try {
+				filter = PngEncoding.Filter.valueOf(line.getOptionValue("png-filter").toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("png-filter");
+			}
+		}
+
+		int threads = PngEncoding.DEFAULT.getThreads();
+		if (line.hasOption("png-threads")) {
+			threads = getInteger(line, "png-threads");
+			if (threads < 1) {
+				throw new ParseException("png-threads");
+			}
+		}
+		return new PngEncoding(level, filter, threads);
+	}
+
+	private void detectGeometry(String filename, List<NandGeometry> candidates) {
+		try {
+			ImageSource is = ImageSource.open(new File(filename));
+			try {
+				List<GeometryDetector.Candidate> ranked = new GeometryDetector(is, GeometryDetector.DEFAULT_SAMPLES)
+						.detect(candidates);
+				for (GeometryDetector.Candidate c : ranked) {
+					System.out.println(c);
+				}
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void buildIndex(String filename, NandGeometry geometry, int blockSize) {
+		try {
+			ImageSource is = ImageSource.open(new File(filename));
+			try {
+				File index = PageIndex.getFile(new File(filename), geometry);
+				PageIndex.build(geometry.open(is, blockSize), geometry, index, is.size(),
+						ImageSource.lastModified(new File(filename)));
+				System.err.println("Wrote " + index);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private LogicalMap openLogicalMap(String filename, NandGeometry geometry, int blockSize, SpareLayout layout) {
+		File image = new File(filename);
+		File file = LogicalMap.getFile(image, geometry, blockSize);
+		try {
+			ImageSource is = ImageSource.open(image);
+			try {
+				long chunks = is.size() / geometry.getChunkSize();
+				long modified = ImageSource.lastModified(image);
+				if (file.isFile()) {
+					try {
+						return LogicalMap.open(file, geometry, blockSize, chunks, layout.toString(), is.size(),
+								modified);
+					} catch (IOException e) {
+						System.err.println("Rebuilding the logical page map: " + e.getMessage());
+					}
+				}
+				LogicalMap map = LogicalMap.build(geometry.open(is, blockSize), new LayoutDecoder(layout));
+				try {
+					map.save(file, geometry, layout.toString(), is.size(), modified);
+					System.err.println("Wrote " + file);
+				} catch (IOException e) {
+					System.err.println("Unable to save the logical page map: " + e.getMessage());
+				}
+				return map;
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unable to map the spares: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private SpareLayout getSpareLayout(CommandLine line, int spareSize) throws ParseException {
+		SpareLayout layout;
+		try {
+			layout = SpareLayout.parse(getString(line, "spare-layout"));
+		} catch (IllegalArgumentException e) {
+			throw new ParseException("spare-layout");
+		}
+		if (layout.getMinimumSpareSize() > spareSize) {
+			throw new ParseException("spare-layout");
+		}
+		return layout;
+	}
+
+	private PageIndex openIndex(String filename, NandGeometry geometry) {
+		File image = new File(filename);
+		try {
+			ImageSource is = ImageSource.open(image);
+			long size;
+			try {
+				size = is.size();
+			} finally {
+				is.close();
+			}
+			return PageIndex.open(PageIndex.getFile(image, geometry), geometry, size / geometry.getChunkSize(), size,
+					ImageSource.lastModified(image));
+		} catch (IOException e) {
+			System.err.println("Unable to use the page index: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void closeIndex(PageIndex index) {
+		if (index != null) {
+			try {
+				index.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void locateRelocations(String filename, NandGeometry geometry, int blockSize, List<byte[]> markers,
+			int threads, ReportFormat format, PageIndex index, LogicalMap map, boolean memoryMapped) {
+		try {
+			ImageSource is = ImageSource.open(new File(filename));
+			try {
+				if (threads > 1 && !is.isSeekable()) {
+					System.err.println(String.format("Warning: %s can only be read in order, so it is scanned on one "
+							+ "thread rather than %d", filename, threads));
+					threads = 1;
+				}
+				NANDDevice device = memoryMapped ? geometry.openMapped(is, blockSize) : geometry.open(is, blockSize);
+				if (map != null) {
+					device = new LogicalNandDevice(device, map);
+				}
+				IdentifyRelocations scanner = new IdentifyRelocations(device, markers);
+				scanner.setIndex(index);
+				scanner.report(System.out, threads, format);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private ReportFormat getReportFormat(CommandLine line) throws ParseException {
+		if (!line.hasOption("report-format")) {
+			return ReportFormat.TEXT;
+		}
+		try {
+			return ReportFormat.valueOf(line.getOptionValue("report-format").toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new ParseException("report-format");
+		}
+	}
+
+	private Set<OverviewPlot.Mode> getOverviews(String modes) throws ParseException {
+		Set<OverviewPlot.Mode> overviews = EnumSet.noneOf(OverviewPlot.Mode.class);
+		for (String mode : modes.split(",")) {
+			try {
+				overviews.add(OverviewPlot.Mode.valueOf(mode.trim().toUpperCase().replace('-', '_')));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("overview");
+			}
+		}
+		return overviews;
+	}
+
+	private List<byte[]> getMarkers(CommandLine line) throws ParseException {
+		List<byte[]> markers = new ArrayList<byte[]>();
+		String[] values = line.getOptionValues("marker");
+		if (values == null) {
+			values = new String[] { IdentifyRelocations.GRID_MARKER };
+		}
+		for (String value : values) {
+			if (value.isEmpty()) {
+				throw new ParseException("marker");
+			}
+			markers.add(value.getBytes(Charset.forName("UTF-8")));
+		}
+		return markers;
+	}
+
+	private List<NandGeometry> getGeometries(String specs, String parameter) throws ParseException {
+		List<NandGeometry> geometries = new ArrayList<NandGeometry>();
+		for (String spec : specs.split(",")) {
+			try {
+				geometries.add(NandGeometry.parse(spec));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException(parameter);
+			}
+		}
+		return geometries;
+	}
+
 	private String getString(CommandLine line, String parameter) throws ParseException {
 		if (line.hasOption(parameter)) {
 			return line.getOptionValue(parameter);
@@ -132,6 +595,24 @@ public class Main {
 		}
 	}
 
+	private void writeSummary(String target, PlotStatistics statistics) {
+		if (target.equals("-")) {
+			System.out.println(statistics.toJson());
+			return;
+		}
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(target), Charset.forName("UTF-8"));
+			try {
+				out.write(statistics.toJson());
+				out.write("\n");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	private int getInteger(CommandLine line, String parameter) throws ParseException {
 		if (line.hasOption(parameter)) {
 			try {
@@ -0,0 +1,252 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.byteplotter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Matches a set of byte patterns at once with an Aho-Corasick automaton, compiled to a table of 256 transitions per
+ * state so that each byte scanned costs one table lookup whatever the number of patterns.
+ * <p>
+ * The matcher itself holds no scanning state, so one matcher may be shared by several threads, each carrying its own
+ * state from one call to the next.
+ */
+public class MarkerMatcher {
+
+	/**
+	 * The state before any bytes have been scanned.
+	 */
+	public static final int START = 0;
+
+	private final byte[][] patterns;
+	/**
+	 * The transitions, indexed by state * 256 + byte.
+	 */
+	private final int[] transitions;
+	/**
+	 * The patterns which end at each state, or null where none do.
+	 */
+	private final int[][] matches;
+
+	/**
+	 * Compile a matcher for a set of patterns.
+	 *
+	 * @param patterns The patterns to match. None may be empty.
+	 */
+	public MarkerMatcher(List<byte[]> patterns) {
+		this.patterns = patterns.toArray(new byte[patterns.size()][]);
+
+		// Build the trie, with transitions that are not yet known marked -1.
+		int states = 1;
+		for (byte[] pattern : this.patterns) {
+			if (pattern.length == 0) {
+				throw new IllegalArgumentException("Empty pattern");
+			}
+			states += pattern.length;
+		}
+		int[] table = new int[states * 256];
+		Arrays.fill(table, -1);
+		List<List<Integer>> ends = new ArrayList<List<Integer>>();
+		ends.add(null);
+		int count = 1;
+		for (int p = 0; p < this.patterns.length; p++) {
+			int state = START;
+			for (byte b : this.patterns[p]) {
+				int t = state * 256 + (b & 0xff);
+				if (table[t] < 0) {
+					table[t] = count++;
+					ends.add(null);
+				}
+				state = table[t];
+			}
+			if (ends.get(state) == null) {
+				ends.set(state, new ArrayList<Integer>());
+			}
+			ends.get(state).add(p);
+		}
+
+		// Fill in the missing transitions breadth first from each state's failure state, which is always shallower.
+		int[] failure = new int[count];
+		int[] queue = new int[count];
+		int head = 0;
+		int tail = 0;
+		for (int b = 0; b < 256; b++) {
+			if (table[b] < 0) {
+				table[b] = START;
+			} else {
+				failure[table[b]] = START;
+				queue[tail++] = table[b];
+			}
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			List<Integer> inherited = ends.get(failure[state]);
+			if (inherited != null) {
+				if (ends.get(state) == null) {
+					ends.set(state, new ArrayList<Integer>());
+				}
+				ends.get(state).addAll(inherited);
+			}
+			for (int b = 0; b < 256; b++) {
+				int t = state * 256 + b;
+				int fallback = table[failure[state] * 256 + b];
+				if (table[t] < 0) {
+					table[t] = fallback;
+				} else {
+					failure[table[t]] = fallback;
+					queue[tail++] = table[t];
+				}
+			}
+		}
+
+		this.transitions = Arrays.copyOf(table, count * 256);
+		this.matches = new int[count][];
+		for (int s = 0; s < count; s++) {
+			List<Integer> e = ends.get(s);
+			if (e != null) {
+				matches[s] = new int[e.size()];
+				for (int i = 0; i < e.size(); i++) {
+					matches[s][i] = e.get(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the number of patterns.
+	 *
+	 * @return The number of patterns.
+	 */
+	public int getPatternCount() {
+		return patterns.length;
+	}
+
+	/**
+	 * Get the length of the longest pattern.
+	 *
+	 * @return The length of the longest pattern.
+	 */
+	public int getMaxLength() {
+		int max = 0;
+		for (byte[] pattern : patterns) {
+			max = Math.max(max, pattern.length);
+		}
+		return max;
+	}
+
+	/**
+	 * Does any pattern contain a byte value. A run of bytes of a value no pattern contains cannot be part of a match,
+	 * and leaves the matcher in the START state.
+	 *
+	 * @param value The byte value.
+	 * @return True if some pattern contains the value.
+	 */
+	public boolean contains(byte value) {
+		for (byte[] pattern : patterns) {
+			for (byte b : pattern) {
+				if (b == value) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get a pattern.
+	 *
+	 * @param pattern The index of the pattern.
+	 * @return The pattern bytes.
+	 */
+	public byte[] getPattern(int pattern) {
+		return patterns[pattern];
+	}
+
+	/**
+	 * Scan a run of bytes.
+	 *
+	 * @param data The bytes to scan.
+	 * @param offset The offset of the first byte.
+	 * @param length The number of bytes to scan.
+	 * @param state The state left by scanning the preceding bytes, or START.
+	 * @param position The position of the first byte in the whole stream scanned, used to report matches.
+	 * @param listener Told of each pattern found.
+	 * @return The state to carry into the following bytes.
+	 */
+	public int scan(byte[] data, int offset, int length, int state, long position, Listener listener) {
+		int[] table = transitions;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			state = table[(state << 8) | (data[i] & 0xff)];
+			int[] found = matches[state];
+			if (found != null) {
+				long next = position + (i - offset) + 1;
+				for (int p : found) {
+					listener.found(p, next - patterns[p].length);
+				}
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Scan a run of bytes in a buffer, such as a slice of a memory mapped image, without copying them out of it.
+	 *
+	 * @param data The buffer to scan. Its position and limit are not used or changed.
+	 * @param offset The index in the buffer of the first byte.
+	 * @param length The number of bytes to scan.
+	 * @param state The state left by scanning the preceding bytes, or START.
+	 * @param position The position of the first byte in the whole stream scanned, used to report matches.
+	 * @param listener Told of each pattern found.
+	 * @return The state to carry into the following bytes.
+	 */
+	public int scan(ByteBuffer data, int offset, int length, int state, long position, Listener listener) {
+		if (data.hasArray()) {
+			return scan(data.array(), data.arrayOffset() + offset, length, state, position, listener);
+		}
+		int[] table = transitions;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			state = table[(state << 8) | (data.get(i) & 0xff)];
+			int[] found = matches[state];
+			if (found != null) {
+				long next = position + (i - offset) + 1;
+				for (int p : found) {
+					listener.found(p, next - patterns[p].length);
+				}
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Receives the patterns found by a scan.
+	 */
+	public interface Listener {
+		/**
+		 * A pattern was found.
+		 *
+		 * @param pattern The index of the pattern.
+		 * @param position The position in the stream of the first byte of the pattern.
+		 */
+		public void found(int pattern, long position);
+	}
+}
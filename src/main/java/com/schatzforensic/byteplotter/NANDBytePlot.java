@@ -17,89 +17,983 @@
 */ 
 package com.schatzforensic.byteplotter;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import com.schatzforensic.ftl.LogicalNandDevice;
+import com.schatzforensic.nanddevice.BufferPool;
+import com.schatzforensic.nanddevice.ImageSource;
+import com.schatzforensic.nanddevice.MappedNandDevice;
 import com.schatzforensic.nanddevice.NANDDevice;
+import com.schatzforensic.nanddevice.NandGeometry;
 import com.schatzforensic.nanddevice.NandInBandDevice;
 import com.schatzforensic.nanddevice.NandOOBandDevice;
+import com.schatzforensic.nanddevice.PageFill;
+import com.schatzforensic.nanddevice.PageIndex;
+import com.schatzforensic.views.Downsampling;
+import com.schatzforensic.views.OverviewPlot;
 import com.schatzforensic.views.PartitionedBytePlot;
+import com.schatzforensic.views.PngWriter;
+import com.schatzforensic.views.TilePyramid;
 
 public class NANDBytePlot {
 
+	private final File source;
+	private final int userDataSize;
+	private final int spareSize;
+	private final int tiling;
+	private final boolean spareNotInBand;
+	private final PlotOptions options;
+
+	private final int imageMaxHeight;
+	private final int pageSize;
+	private final int chunksPerImage;
+	private final long countChunks;
+	private final int plotDataSize;
+	private final int plotSpareSize;
+	private final String deviceName;
+	private final String plotName;
+	private final PlotStatistics statistics;
+
+	private static final int OVERVIEW_BATCH_PAGES = 256;
+
+	/**
+	 * The number of pages in each read of the pipeline's read-ahead stage.
+	 */
+	private static final int READ_AHEAD_PAGES = 1024;
+
+	/**
+	 * The number of read-ahead buffers in the pipeline's ring.
+	 */
+	private static final int READ_AHEAD_BUFFERS = 4;
+
+	/**
+	 * The number of pages a streamed image reads ahead of the row being drawn, across all of its columns.
+	 */
+	private static final int STREAM_BATCH_PAGES = 1024;
+
 	public NANDBytePlot(String file, int userDataSize, int spareSize, int tiling, boolean spareNotInBand) {
+		this(file, userDataSize, spareSize, tiling, spareNotInBand, new PlotOptions());
+	}
+
+	public NANDBytePlot(String file, int userDataSize, int spareSize, int tiling, boolean spareNotInBand,
+			PlotOptions options) {
+		this.source = new File(file);
+		this.userDataSize = userDataSize;
+		this.spareSize = spareSize;
+		this.tiling = tiling;
+		this.spareNotInBand = spareNotInBand;
+		this.options = options;
+		this.imageMaxHeight = options.getImageHeight();
+		this.pageSize = (userDataSize + spareSize);
+		this.chunksPerImage = (imageMaxHeight * tiling);
 
+		ImageSource image = null;
+		long length = 0;
 		try {
-			File source = new File(file);
-			String basePath = source.getParent();
+			image = ImageSource.open(source);
+			length = image.size();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		this.countChunks = options.getLogicalMap() != null ? options.getLogicalMap().getLogicalSize() : length
+				/ pageSize;
+		this.plotDataSize = options.getDownsampling().getLength(userDataSize);
+		this.plotSpareSize = options.getDownsampling().getLength(spareSize);
+		this.deviceName = String.format("%s-%d-%d%s", source.getName(), userDataSize, spareSize,
+				options.getLogicalMap() != null ? "-logical" : "");
+		this.plotName = options.getDownsampling().isNone() ? deviceName : String.format("%s-%s%d", deviceName,
+				options.getDownsampling().getAggregate().name().toLowerCase(), options.getDownsampling()
+						.getBytesPerPixel());
 
-			RandomAccessFile is = new RandomAccessFile(source, "r");
-			NANDDevice fis = null;
-			if(spareNotInBand){
-				fis = new NandOOBandDevice(userDataSize, spareSize, tiling, is);
-			} else {
-				fis = new NandInBandDevice(userDataSize, spareSize, tiling, is);
+		// paramaters match size of file
+		if (length % pageSize != 0) {
+			System.err.println("Warning: size of file isnt a multiple of page size");
+		}
+
+		int imagesToGenerate = (int) Math.ceil((double) countChunks / (double) chunksPerImage);
+
+		this.statistics = new PlotStatistics(countChunks, pageSize);
+		if (image == null) {
+			return;
+		}
+		if (options.getProgressInterval() > 0) {
+			statistics.startProgress(System.err, options.getProgressInterval());
+		}
+		boolean pipelined = options.isPipelined();
+		int threads = options.getThreads();
+		if (threads > 1 && !image.isSeekable()) {
+			// Images rendered in parallel read far apart, and each read behind another restarts decompression.
+			System.err.println(String.format("Warning: %s can only be read in order, so it is read by one thread "
+					+ "rather than on %d threads", source.getName(), threads));
+			threads = 1;
+			pipelined = true;
+		}
+		try {
+			try {
+				NANDDevice fis = openDevice(image);
+				if (!fitsInMemory()) {
+					System.err.println(String.format("An image %d pixels high is too large to hold in memory, use %s",
+							imageMaxHeight, options.getErased() == PlotOptions.ErasedChunks.ELIDE ? "a smaller "
+									+ "--image-height" : "--stream or a smaller --image-height"));
+				} else if (!options.getOverviews().isEmpty()) {
+					renderOverviews(fis);
+				} else if (options.isPyramid()) {
+					renderPyramid(fis);
+				} else if (options.getErased() == PlotOptions.ErasedChunks.ELIDE) {
+					renderElided(fis);
+				} else if (pipelined && !options.isStreaming()) {
+					renderPipelined(fis, imagesToGenerate);
+				} else if (threads > 1) {
+					renderParallel(fis, imagesToGenerate);
+				} else {
+					for (int j = 0; j < imagesToGenerate; j += 1) {
+						renderImage(fis, j);
+					}
+				}
+			} finally {
+				image.close();
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			statistics.finish();
+		}
+	}
+
+	/**
+	 * Will the images of the plot fit in a raster held in memory, if they are not streamed. Elided images are always
+	 * held in memory.
+	 * 
+	 * @return True if the images fit, or are streamed.
+	 */
+	private boolean fitsInMemory() {
+		if (!options.getOverviews().isEmpty() || options.isPyramid()
+				|| (options.isStreaming() && options.getErased() != PlotOptions.ErasedChunks.ELIDE)) {
+			return true;
+		}
+		int width = PartitionedBytePlot.getImageWidth((plotDataSize + plotSpareSize) * tiling, plotDataSize,
+				plotSpareSize);
+		return (long) width * imageHeight(0) <= Integer.MAX_VALUE;
+	}
 
-			int imageMaxHeight = 4096 * 2;
-			int pageSize = (userDataSize + spareSize);
-			int width = pageSize * tiling;
-			long countChunks = is.length() / pageSize;
+	/**
+	 * Get the counts and phase timings of the run.
+	 * 
+	 * @return The statistics.
+	 */
+	public PlotStatistics getStatistics() {
+		return statistics;
+	}
 
-			// paramaters match size of file
-			if (source.length() % pageSize != 0) {
-				System.err.println("Warning: size of file isnt a multiple of page size");
+	/**
+	 * Render the images on a pool of worker threads, all reading from the one device.
+	 * 
+	 * @param fis The device to read from.
+	 * @param imagesToGenerate The number of images to render.
+	 * @throws IOException If rendering any of the images failed.
+	 */
+	private void renderParallel(final NANDDevice fis, int imagesToGenerate) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(options.getThreads());
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int j = 0; j < imagesToGenerate; j += 1) {
+				final int fileNo = j;
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						renderImage(fis, fileNo);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get();
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Rendering interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Rendering failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
 
-			ByteBuffer buf = ByteBuffer.allocate(pageSize);
-			buf.limit(userDataSize);
-			ByteBuffer page = buf.slice();
-			buf.limit(pageSize);
-			buf.position(userDataSize);
-			ByteBuffer spare = buf.slice();
+	/**
+	 * A run of pages read ahead by the pipeline.
+	 */
+	private static class Batch {
+		final ByteBuffer page;
+		final ByteBuffer spare;
+		long firstChunk;
+		int count;
+		IOException failure;
 
-			int chunksPerImage = (imageMaxHeight * tiling);
-			int imagesToGenerate = (int) Math.ceil((double) countChunks / (double) chunksPerImage);
+		Batch(ByteBuffer page, ByteBuffer spare) {
+			this.page = page;
+			this.spare = spare;
+		}
+	}
 
-			int fileNo = 0;
-			long read = 0;
-			final long length = source.length();
+	/**
+	 * Render the images through a three stage pipeline, so reading, drawing and encoding overlap. A read-ahead thread
+	 * reads the device from start to end in large sequential reads into a ring of buffers, the calling thread draws
+	 * each batch into the image it belongs to, and an encoder thread renders each completed image to its file while
+	 * the next is drawn. The ring and the single image awaiting encoding bound the memory used: the reader waits for a
+	 * free buffer and the drawing waits for the encoder.
+	 * 
+	 * @param fis The device to read from.
+	 * @param imagesToGenerate The number of images to render.
+	 * @throws IOException
+	 */
+	private void renderPipelined(final NANDDevice fis, int imagesToGenerate) throws IOException {
+		final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(READ_AHEAD_BUFFERS);
+		final BlockingQueue<Batch> filled = new ArrayBlockingQueue<Batch>(READ_AHEAD_BUFFERS + 1);
+		List<Batch> ring = new ArrayList<Batch>(READ_AHEAD_BUFFERS);
+		for (int b = 0; b < READ_AHEAD_BUFFERS; b++) {
+			ring.add(new Batch(BufferPool.SHARED.acquire(userDataSize * READ_AHEAD_PAGES), BufferPool.SHARED
+					.acquire(spareSize * READ_AHEAD_PAGES)));
+		}
+		free.addAll(ring);
+		final Batch end = new Batch(null, null);
 
-			for (long j = 0; j < imagesToGenerate; j += 1) {
-				int thisHeight = Math.min(imageMaxHeight, (int) (countChunks - (j * chunksPerImage)));
-				PartitionedBytePlot v = new PartitionedBytePlot(width, (int) thisHeight, userDataSize, spareSize,
+		ExecutorService reader = Executors.newSingleThreadExecutor();
+		ExecutorService encoder = Executors.newSingleThreadExecutor();
+		Future<Void> encoding = null;
+		PartitionedBytePlot v = null;
+		try {
+			reader.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws InterruptedException {
+					for (long i = 0; i < countChunks; i += READ_AHEAD_PAGES) {
+						Batch batch = free.take();
+						batch.firstChunk = i;
+						batch.count = (int) Math.min(READ_AHEAD_PAGES, countChunks - i);
+						batch.page.clear();
+						batch.page.limit(batch.count * userDataSize);
+						batch.spare.clear();
+						batch.spare.limit(batch.count * spareSize);
+						try {
+							readPages(fis, i, batch.count, batch.page, batch.spare);
+						} catch (IOException e) {
+							batch.failure = e;
+						} catch (RuntimeException e) {
+							batch.failure = new IOException("Reading failed", e);
+						}
+						filled.put(batch);
+						if (batch.failure != null) {
+							return null;
+						}
+					}
+					filled.put(end);
+					return null;
+				}
+			});
+
+			int fileNo = -1;
+			for (Batch batch = filled.take(); batch != end; batch = filled.take()) {
+				if (batch.failure != null) {
+					throw batch.failure;
+				}
+				for (int c = 0; c < batch.count;) {
+					long chunk = batch.firstChunk + c;
+					int image = (int) (chunk / chunksPerImage);
+					if (image != fileNo) {
+						if (v != null) {
+							encoding = encode(encoder, encoding, v, fileNo);
+						}
+						fileNo = image;
+						v = new PartitionedBytePlot((plotDataSize + plotSpareSize) * tiling, imageHeight(fileNo),
+								plotDataSize, plotSpareSize, PartitionedBytePlot.LayoutDirection.VERTICAL);
+						v.setEncoding(options.getEncoding());
+					}
+					int position = (int) (chunk - (long) chunksPerImage * fileNo);
+					int count = Math.min(batch.count - c, chunksPerImage - position);
+					addPages(v, position, count, slice(batch.page, c * userDataSize, count * userDataSize), slice(
+							batch.spare, c * spareSize, count * spareSize));
+					c += count;
+				}
+				free.put(batch);
+			}
+			if (v != null) {
+				encoding = encode(encoder, encoding, v, fileNo);
+				v = null;
+			}
+			await(encoding);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Rendering interrupted", e);
+		} finally {
+			reader.shutdownNow();
+			encoder.shutdown();
+			if (v != null) {
+				v.release();
+			}
+			// After a failure batches may be held by the reader, waiting in filled or being drawn, so the whole ring
+			// is returned once the reader has stopped writing to it.
+			if (awaitStopped(reader)) {
+				for (Batch batch : ring) {
+					BufferPool.SHARED.release(batch.page);
+					BufferPool.SHARED.release(batch.spare);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for a shut down thread to finish its task.
+	 * 
+	 * @param executor The thread.
+	 * @return True if it finished, false if it is still running or the wait was interrupted.
+	 */
+	private static boolean awaitStopped(ExecutorService executor) {
+		try {
+			return executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Hand a drawn image to the encoder thread, once the image before it has been encoded.
+	 * 
+	 * @param encoder The encoder thread.
+	 * @param previous The encoding of the previous image, or null.
+	 * @param v The image.
+	 * @param fileNo The number of the image.
+	 * @return The encoding of the image.
+	 * @throws IOException If encoding the previous image failed.
+	 * @throws InterruptedException
+	 */
+	private Future<Void> encode(ExecutorService encoder, Future<Void> previous, final PartitionedBytePlot v,
+			final int fileNo) throws IOException, InterruptedException {
+		await(previous);
+		return encoder.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				try {
+					OutputStream os = new BufferedOutputStream(new FileOutputStream(String.format("%s%s%s.%03d.png",
+							source.getParent(), File.separator, plotName, fileNo)));
+					try {
+						render(v, os);
+					} finally {
+						os.close();
+					}
+				} finally {
+					v.release();
+				}
+				return null;
+			}
+		});
+	}
+
+	private static void await(Future<Void> result) throws IOException, InterruptedException {
+		if (result == null) {
+			return;
+		}
+		try {
+			result.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Rendering failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Get the height of an image of the plot.
+	 */
+	private int imageHeight(int fileNo) {
+		long firstChunk = (long) chunksPerImage * fileNo;
+		return (int) Math.min(imageMaxHeight, countChunks - firstChunk);
+	}
+
+	/**
+	 * Render the whole device as a single Deep Zoom tile pyramid. The device is laid out horizontally, a row of tiles
+	 * worth of chunks per row, so it is read once from start to end.
+	 * 
+	 * @param fis The device to read from.
+	 * @throws IOException
+	 */
+	private void renderPyramid(NANDDevice fis) throws IOException {
+		int width = (plotDataSize + plotSpareSize) * tiling;
+		long rows = (countChunks + tiling - 1) / tiling;
+		if (rows > Integer.MAX_VALUE) {
+			throw new IOException("The device is too tall to render as one pyramid, use a larger tile size");
+		}
+		int height = (int) rows;
+
+		TilePyramid pyramid = new TilePyramid(source.getAbsoluteFile().getParentFile(), plotName,
+				PartitionedBytePlot.getImageWidth(width, plotDataSize, plotSpareSize), height,
+				TilePyramid.DEFAULT_TILE_SIZE, options.getEncoding());
+		PartitionedBytePlot v = new PartitionedBytePlot(width, height, plotDataSize, plotSpareSize,
+				PartitionedBytePlot.LayoutDirection.HORIZONTAL, statistics.time(pyramid));
+
+		ByteBuffer page = BufferPool.SHARED.acquire(userDataSize * tiling);
+		ByteBuffer spare = BufferPool.SHARED.acquire(spareSize * tiling);
+		try {
+			for (long i = 0; i < countChunks; i += tiling) {
+				int count = (int) Math.min(tiling, countChunks - i);
+				if (drawMapped(fis, v, i, i, count)) {
+					continue;
+				}
+				page.clear();
+				page.limit(count * userDataSize);
+				spare.clear();
+				spare.limit(count * spareSize);
+				readPages(fis, i, count, page, spare);
+				addPages(v, i, count, page, spare);
+			}
+		} finally {
+			BufferPool.SHARED.release(page);
+			BufferPool.SHARED.release(spare);
+		}
+		v.finish();
+		statistics.addImage();
+	}
+
+	/**
+	 * Open the NAND device for the image, presenting its logical view if there is a logical page map.
+	 * 
+	 * @param image The image to read from.
+	 * @return The NAND device.
+	 * @throws IOException
+	 */
+	private NANDDevice openDevice(ImageSource image) throws IOException {
+		NANDDevice device = openPhysicalDevice(image);
+		if (options.getLogicalMap() != null) {
+			return new LogicalNandDevice(device, options.getLogicalMap());
+		}
+		return device;
+	}
+
+	/**
+	 * Open the physical NAND device for the image.
+	 * 
+	 * @param image The image to read from.
+	 * @return The NAND device.
+	 * @throws IOException
+	 */
+	private NANDDevice openPhysicalDevice(ImageSource image) throws IOException {
+		if (options.isMemoryMapped()) {
+			return new NandGeometry(userDataSize, spareSize, spareNotInBand).openMapped(image, options.getBlockSize());
+		} else if (spareNotInBand) {
+			return new NandOOBandDevice(userDataSize, spareSize, options.getBlockSize(), image);
+		} else {
+			return new NandInBandDevice(userDataSize, spareSize, options.getBlockSize(), image);
+		}
+	}
+
+	/**
+	 * Render one image of the plot.
+	 * 
+	 * @param fis The device to read from.
+	 * @param fileNo The number of the image to render.
+	 * @throws IOException
+	 */
+	private void renderImage(NANDDevice fis, int fileNo) throws IOException {
+		int width = (plotDataSize + plotSpareSize) * tiling;
+		long firstChunk = (long) chunksPerImage * fileNo;
+		int thisHeight = imageHeight(fileNo);
+		long chunksInImage = Math.min((long) thisHeight * tiling, countChunks - firstChunk);
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(String.format("%s%s%s.%03d.png",
+				source.getParent(), File.separator, plotName, fileNo)));
+		try {
+			if (options.isStreaming()) {
+				streamImage(fis, firstChunk, thisHeight, chunksInImage, statistics.time(os));
+			} else {
+				// Read a row of tiles worth of pages at a time.
+				ByteBuffer page = BufferPool.SHARED.acquire(userDataSize * tiling);
+				ByteBuffer spare = BufferPool.SHARED.acquire(spareSize * tiling);
+
+				PartitionedBytePlot v = new PartitionedBytePlot(width, thisHeight, plotDataSize, plotSpareSize,
 						PartitionedBytePlot.LayoutDirection.VERTICAL);
+				v.setEncoding(options.getEncoding());
+				try {
+					for (int i = 0; i < chunksInImage; i += tiling) {
+						int count = (int) Math.min(tiling, chunksInImage - i);
+						if (drawMapped(fis, v, i, firstChunk + i, count)) {
+							continue;
+						}
+						page.clear();
+						page.limit(count * userDataSize);
+						spare.clear();
+						spare.limit(count * spareSize);
+						readPages(fis, firstChunk + i, count, page, spare);
+						addPages(v, i, count, page, spare);
+					}
+					render(v, os);
+				} finally {
+					BufferPool.SHARED.release(page);
+					BufferPool.SHARED.release(spare);
+					v.release();
+				}
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Encode a plot held in memory to a file.
+	 * 
+	 * @param v The plot.
+	 * @param os The file to write to.
+	 * @throws IOException
+	 */
+	private void render(PartitionedBytePlot v, OutputStream os) throws IOException {
+		statistics.begin(PlotStatistics.Phase.ENCODE);
+		try {
+			v.render(statistics.time(os));
+		} finally {
+			statistics.end();
+		}
+		statistics.addImage();
+	}
+
+	/**
+	 * Render one image of the plot, streaming it to the PNG a row at a time. The chunks of each row lie in different
+	 * columns of the vertical layout, so a band of rows is read at a time, with one read of consecutive chunks down each
+	 * column, and then drawn a row at a time across the columns.
+	 * 
+	 * @param fis The device to read from.
+	 * @param firstChunk The first chunk of the image.
+	 * @param thisHeight The height of the image.
+	 * @param chunksInImage The number of chunks in the image.
+	 * @param os The stream to write the PNG to.
+	 * @throws IOException
+	 */
+	private void streamImage(NANDDevice fis, long firstChunk, int thisHeight, long chunksInImage, OutputStream os)
+			throws IOException {
+		int band = Math.max(1, Math.min(thisHeight, STREAM_BATCH_PAGES / tiling));
+		ByteBuffer page = BufferPool.SHARED.acquire(userDataSize * tiling * band);
+		ByteBuffer spare = BufferPool.SHARED.acquire(spareSize * tiling * band);
+		int[] counts = new int[tiling];
+
+		int width = (plotDataSize + plotSpareSize) * tiling;
+		PngWriter png = new PngWriter(os, PartitionedBytePlot.getImageWidth(width, plotDataSize, plotSpareSize),
+				thisHeight, PartitionedBytePlot.PALETTE, options.getEncoding());
+		PartitionedBytePlot v = new PartitionedBytePlot(width, thisHeight, plotDataSize, plotSpareSize,
+				PartitionedBytePlot.LayoutDirection.VERTICAL, statistics.time(png));
+
+		try {
+			for (int y = 0; y < thisHeight; y += band) {
+				int rows = Math.min(band, thisHeight - y);
+				if (isMapped(fis)) {
+					// Draw each chunk straight from the mapping, in row order, with nothing to read ahead.
+					for (int r = 0; r < rows; r++) {
+						for (int t = 0; t < tiling; t++) {
+							long i = (long) t * thisHeight + y + r;
+							if (i >= chunksInImage) {
+								break;
+							}
+							drawMapped(fis, v, i, firstChunk + i, 1);
+						}
+					}
+					continue;
+				}
+				for (int t = 0; t < tiling; t++) {
+					long i = (long) t * thisHeight + y;
+					counts[t] = (int) Math.max(0, Math.min(rows, chunksInImage - i));
+					if (counts[t] > 0) {
+						ByteBuffer columnPages = slice(page, t * band * userDataSize, counts[t] * userDataSize);
+						ByteBuffer columnSpares = slice(spare, t * band * spareSize, counts[t] * spareSize);
+						readPages(fis, firstChunk + i, counts[t], columnPages, columnSpares);
+					}
+				}
+				for (int r = 0; r < rows; r++) {
+					for (int t = 0; t < tiling && r < counts[t]; t++) {
+						int p = t * band + r;
+						addPages(v, (long) t * thisHeight + y + r, 1, slice(page, p * userDataSize, userDataSize),
+								slice(spare, p * spareSize, spareSize));
+					}
+				}
+			}
+			v.finish();
+		} finally {
+			png.close();
+			BufferPool.SHARED.release(page);
+			BufferPool.SHARED.release(spare);
+		}
+		os.flush();
+		statistics.addImage();
+	}
+
+	/**
+	 * Render the plot leaving out erased and zeroed chunks, as file-userdata-spare-elided.NNN.png. The chunks kept
+	 * are gathered until they fill an image, which is then rendered, and the runs of device chunks each image holds
+	 * are written to file-userdata-spare-elided.map as CSV rows of image, first position in the image, first chunk
+	 * and count.
+	 * 
+	 * @param fis The device to read from.
+	 * @throws IOException
+	 */
+	private void renderElided(NANDDevice fis) throws IOException {
+		ByteBuffer page = BufferPool.SHARED.acquire(userDataSize * tiling);
+		ByteBuffer spare = BufferPool.SHARED.acquire(spareSize * tiling);
+		ByteBuffer keptPages = BufferPool.SHARED.acquire(userDataSize * chunksPerImage);
+		ByteBuffer keptSpares = BufferPool.SHARED.acquire(spareSize * chunksPerImage);
+
+		Writer map = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(String.format(
+				"%s%s%s-elided.map", source.getParent(), File.separator, plotName))),
+				Charset.forName("UTF-8"));
+		try {
+			map.write("image,position,chunk,count\n");
+			int fileNo = 0;
+			int kept = 0;
+			int runPosition = 0;
+			long runStart = -1;
+			for (long i = 0; i < countChunks; i += tiling) {
+				int count = (int) Math.min(tiling, countChunks - i);
+				page.clear();
+				page.limit(count * userDataSize);
+				spare.clear();
+				spare.limit(count * spareSize);
+				readPages(fis, i, count, page, spare);
 
-				for (int i = 0; i < thisHeight * tiling; i += 1) {
-					if (length - read < pageSize) {
-						break;
+				for (int c = 0; c < count; c++) {
+					long chunk = i + c;
+					if (isFilled(chunk, page, c, spare)) {
+						if (runStart >= 0) {
+							writeRun(map, fileNo, runPosition, runStart, kept - runPosition);
+							runStart = -1;
+						}
+						continue;
+					}
+					if (runStart < 0) {
+						runStart = chunk;
+						runPosition = kept;
 					}
-					buf.clear();
+					keptPages.put(page.array(), c * userDataSize, userDataSize);
+					keptSpares.put(spare.array(), c * spareSize, spareSize);
+					kept++;
+					if (kept == chunksPerImage) {
+						writeRun(map, fileNo, runPosition, runStart, kept - runPosition);
+						runStart = -1;
+						renderKept(fileNo++, kept, keptPages, keptSpares);
+						kept = 0;
+					}
+				}
+			}
+			if (kept > 0) {
+				if (runStart >= 0) {
+					writeRun(map, fileNo, runPosition, runStart, kept - runPosition);
+				}
+				renderKept(fileNo, kept, keptPages, keptSpares);
+			}
+		} finally {
+			map.close();
+			BufferPool.SHARED.release(page);
+			BufferPool.SHARED.release(spare);
+			BufferPool.SHARED.release(keptPages);
+			BufferPool.SHARED.release(keptSpares);
+		}
+	}
+
+	/**
+	 * Render the requested overviews of the whole device in a single pass, each to its own PNG named after the mode.
+	 * 
+	 * @param fis The device to read from.
+	 * @throws IOException
+	 */
+	private void renderOverviews(NANDDevice fis) throws IOException {
+		List<OverviewPlot> plots = new ArrayList<OverviewPlot>();
+		List<OutputStream> streams = new ArrayList<OutputStream>();
+		try {
+			for (OverviewPlot.Mode mode : options.getOverviews()) {
+				OutputStream os = new BufferedOutputStream(statistics.time(new FileOutputStream(String.format(
+						"%s%s%s-%s.png", source.getParent(), File.separator, deviceName, mode.name().toLowerCase()
+								.replace('_', '-')))));
+				streams.add(os);
+				plots.add(new OverviewPlot(os, mode, userDataSize, spareSize, countChunks, options.getOverviewWidth(),
+						options.getOverviewBytesPerPixel(), options.getEncoding()));
+			}
+
+			int batch = OVERVIEW_BATCH_PAGES;
+			ByteBuffer page = BufferPool.SHARED.acquire(userDataSize * batch);
+			ByteBuffer spare = BufferPool.SHARED.acquire(spareSize * batch);
+			try {
+				for (long i = 0; i < countChunks; i += batch) {
+					int count = (int) Math.min(batch, countChunks - i);
 					page.clear();
+					page.limit(count * userDataSize);
 					spare.clear();
-					fis.readPage(chunksPerImage * j + i, page, spare);
-					v.addBuf((int) i * pageSize, buf);
-					read += pageSize;
+					spare.limit(count * spareSize);
+					readPages(fis, i, count, page, spare);
+					statistics.begin(PlotStatistics.Phase.DRAW);
+					try {
+						for (int c = 0; c < count; c++) {
+							for (OverviewPlot plot : plots) {
+								plot.addPage(page, c * userDataSize, spare, c * spareSize);
+							}
+						}
+					} finally {
+						statistics.end();
+					}
+					statistics.addRendered((long) count * pageSize);
 				}
+			} finally {
+				BufferPool.SHARED.release(page);
+				BufferPool.SHARED.release(spare);
+			}
+			for (OverviewPlot plot : plots) {
+				statistics.begin(PlotStatistics.Phase.ENCODE);
+				try {
+					plot.finish();
+				} finally {
+					statistics.end();
+				}
+				statistics.addImage();
+			}
+		} finally {
+			for (OverviewPlot plot : plots) {
+				plot.close();
+			}
+			for (OutputStream os : streams) {
+				os.close();
+			}
+		}
+	}
 
-				FileOutputStream os = new FileOutputStream(String.format("%s%s%s-%d-%d.%03d.png", basePath,
-						File.separator, source.getName(), userDataSize, spareSize, fileNo));
-				v.render(os);
+	private void writeRun(Writer map, int fileNo, int position, long firstChunk, int count) throws IOException {
+		map.write(fileNo + "," + position + "," + firstChunk + "," + count + "\n");
+	}
+
+	/**
+	 * Render the chunks gathered for an image of an elided plot.
+	 */
+	private void renderKept(int fileNo, int kept, ByteBuffer keptPages, ByteBuffer keptSpares) throws IOException {
+		int thisHeight = (kept + tiling - 1) / tiling;
+		PartitionedBytePlot v = new PartitionedBytePlot((plotDataSize + plotSpareSize) * tiling, thisHeight,
+				plotDataSize, plotSpareSize, PartitionedBytePlot.LayoutDirection.VERTICAL);
+		v.setEncoding(options.getEncoding());
+		try {
+			addPages(v, 0, kept, keptPages, keptSpares);
+
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(String.format("%s%s%s-elided.%03d.png",
+					source.getParent(), File.separator, plotName, fileNo)));
+			try {
+				render(v, os);
+			} finally {
 				os.close();
+			}
+		} finally {
+			v.release();
+		}
+		keptPages.clear();
+		keptSpares.clear();
+	}
 
-				fileNo++;
+	/**
+	 * Add a run of pages to the plot, drawing erased and zeroed chunks as placeholders if asked to.
+	 * 
+	 * @param v The plot.
+	 * @param chunkNo The number of the first chunk in the plot.
+	 * @param count The number of chunks.
+	 * @param page The page data of the chunks.
+	 * @param spare The spares of the chunks.
+	 * @throws IOException
+	 */
+	private void addPages(PartitionedBytePlot v, long chunkNo, int count, ByteBuffer page, ByteBuffer spare)
+			throws IOException {
+		statistics.begin(PlotStatistics.Phase.DRAW);
+		try {
+			drawPages(v, chunkNo, count, page, spare);
+		} finally {
+			statistics.end();
+		}
+		statistics.addRendered((long) count * pageSize);
+	}
 
-				if (length - read < pageSize) {
-					break;
-				}
+	private void drawPages(PartitionedBytePlot v, long chunkNo, int count, ByteBuffer page, ByteBuffer spare)
+			throws IOException {
+		if (options.getErased() != PlotOptions.ErasedChunks.PLACEHOLDER) {
+			plotPages(v, chunkNo, count, page, spare);
+			return;
+		}
+		for (int c = 0; c < count;) {
+			boolean filled = isFilled(page, c, spare);
+			int end = c + 1;
+			while (end < count && isFilled(page, end, spare) == filled) {
+				end++;
 			}
+			if (filled) {
+				v.addPlaceholders(chunkNo + c, end - c);
+			} else if (c == 0 && end == count) {
+				plotPages(v, chunkNo, count, page, spare);
+			} else {
+				plotPages(v, chunkNo + c, end - c, slice(page, c * userDataSize, (end - c) * userDataSize),
+						slice(spare, c * spareSize, (end - c) * spareSize));
+			}
+			c = end;
+		}
+	}
 
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * Add a run of pages to the plot, reducing their page data and spares separately if the plot is downsampled.
+	 * 
+	 * @param v The plot.
+	 * @param chunkNo The number of the first chunk in the plot.
+	 * @param count The number of chunks.
+	 * @param page The page data of the chunks.
+	 * @param spare The spares of the chunks.
+	 * @throws IOException
+	 */
+	private void plotPages(PartitionedBytePlot v, long chunkNo, int count, ByteBuffer page, ByteBuffer spare)
+			throws IOException {
+		Downsampling downsampling = options.getDownsampling();
+		if (downsampling.isNone()) {
+			v.addPages(chunkNo, count, page, spare);
+			return;
+		}
+		ByteBuffer reducedPages = BufferPool.SHARED.acquire(count * plotDataSize);
+		ByteBuffer reducedSpares = BufferPool.SHARED.acquire(count * plotSpareSize);
+		try {
+			for (int c = 0; c < count; c++) {
+				downsampling.reduce(page, c * userDataSize, userDataSize, reducedPages.array(), c * plotDataSize);
+				downsampling.reduce(spare, c * spareSize, spareSize, reducedSpares.array(), c * plotSpareSize);
+			}
+			v.addPages(chunkNo, count, reducedPages, reducedSpares);
+		} finally {
+			BufferPool.SHARED.release(reducedPages);
+			BufferPool.SHARED.release(reducedSpares);
+		}
+	}
+
+	private boolean isFilled(ByteBuffer page, int c, ByteBuffer spare) {
+		return PageFill.isFilled(page, c * userDataSize, userDataSize, spare, c * spareSize, spareSize);
+	}
+
+	/**
+	 * Is a chunk erased or zeroed, asking the page index if there is one.
+	 */
+	private boolean isFilled(long chunk, ByteBuffer page, int c, ByteBuffer spare) throws IOException {
+		PageIndex index = options.getIndex();
+		if (index != null) {
+			return index.isFilled(chunk);
+		}
+		return isFilled(page, c, spare);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buf, int offset, int length) {
+		ByteBuffer view = buf.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		return view.slice();
+	}
+
+	/**
+	 * Is the device memory mapped with no page index to consult, so its pages can be drawn in place.
+	 */
+	private boolean isMapped(NANDDevice fis) {
+		return fis instanceof MappedNandDevice && options.getIndex() == null;
+	}
+
+	/**
+	 * Draw a run of chunks straight from the mapped image, without copying their pages out of the mapping first.
+	 * 
+	 * @param fis The device to read from.
+	 * @param v The plot.
+	 * @param chunkNo The number of the first chunk in the plot.
+	 * @param firstChunk The first chunk on the device.
+	 * @param count The number of chunks.
+	 * @return True if the chunks were drawn, false if the device is not mapped so they must be read.
+	 * @throws IOException
+	 */
+	private boolean drawMapped(NANDDevice fis, PartitionedBytePlot v, long chunkNo, long firstChunk, int count)
+			throws IOException {
+		if (!isMapped(fis)) {
+			return false;
+		}
+		MappedNandDevice mapped = (MappedNandDevice) fis;
+		for (int c = 0; c < count; c++) {
+			addPages(v, chunkNo + c, 1, mapped.getPageSlice(firstChunk + c), mapped.getSpareSlice(firstChunk + c));
+		}
+		statistics.addPages(count, (long) count * pageSize);
+		return true;
+	}
+
+	/**
+	 * Read a run of pages, taking the contents of filled pages from the page index, if there is one, rather than
+	 * reading them.
+	 * 
+	 * @param fis The device to read from.
+	 * @param firstChunk The first chunk to read.
+	 * @param count The number of chunks to read.
+	 * @param page The buffer for the page data.
+	 * @param spare The buffer for the spares.
+	 * @throws IOException
+	 */
+	private void readPages(NANDDevice fis, long firstChunk, int count, ByteBuffer page, ByteBuffer spare)
+			throws IOException {
+		statistics.begin(PlotStatistics.Phase.READ);
+		try {
+			statistics.addPages(count, readIndexed(fis, firstChunk, count, page, spare));
+		} finally {
+			statistics.end();
+		}
+	}
+
+	/**
+	 * Read a run of pages, taking filled pages from the index if there is one.
+	 * 
+	 * @return The number of bytes read from the device.
+	 */
+	private long readIndexed(NANDDevice fis, long firstChunk, int count, ByteBuffer page, ByteBuffer spare)
+			throws IOException {
+		PageIndex index = options.getIndex();
+		if (index == null) {
+			fis.readPages(firstChunk, count, page, spare);
+			return (long) count * pageSize;
+		}
+		long read = 0;
+		int pageLimit = page.limit();
+		int spareLimit = spare.limit();
+		long end = firstChunk + count;
+		for (long chunk = firstChunk; chunk < end;) {
+			boolean filled = index.isFilled(chunk);
+			long runEnd = chunk + 1;
+			while (runEnd < end && index.isFilled(runEnd) == filled) {
+				runEnd++;
+			}
+			int run = (int) (runEnd - chunk);
+			page.limit(page.position() + run * userDataSize);
+			spare.limit(spare.position() + run * spareSize);
+			if (filled) {
+				index.fillPages(chunk, run, page, spare);
+			} else {
+				fis.readPages(chunk, run, page, spare);
+				read += (long) run * pageSize;
+			}
+			chunk = runEnd;
 		}
+		page.limit(pageLimit);
+		spare.limit(spareLimit);
+		return read;
 	}
 
 	public static void main(String[] args) {
@@ -0,0 +1,379 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.byteplotter;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import com.schatzforensic.ftl.LogicalMap;
+import com.schatzforensic.nanddevice.NandGeometry;
+import com.schatzforensic.nanddevice.PageIndex;
+import com.schatzforensic.views.Downsampling;
+import com.schatzforensic.views.OverviewPlot;
+import com.schatzforensic.views.PngEncoding;
+
+/**
+ * Optional settings for a byte plot run. The defaults reproduce the original behaviour of the plotter.
+ */
+public class PlotOptions {
+
+	/**
+	 * How erased and zeroed chunks are plotted.
+	 */
+	public enum ErasedChunks {
+		/**
+		 * Plot them like any other chunk.
+		 */
+		PLOT,
+		/**
+		 * Draw them in the placeholder colour.
+		 */
+		PLACEHOLDER,
+		/**
+		 * Leave them out of the plot, and write a map of the chunks each image holds.
+		 */
+		ELIDE
+	};
+
+	private boolean memoryMapped = false;
+	private int threads = 1;
+	private int imageHeight = 4096 * 2;
+	private boolean streaming = false;
+	private PngEncoding encoding = PngEncoding.DEFAULT;
+	private boolean pyramid = false;
+	private PageIndex index = null;
+	private ErasedChunks erased = ErasedChunks.PLOT;
+	private Set<OverviewPlot.Mode> overviews = EnumSet.noneOf(OverviewPlot.Mode.class);
+	private int overviewWidth = 1024;
+	private int overviewBytesPerPixel = 256;
+	private Downsampling downsampling = Downsampling.NONE;
+	private long progressInterval = 0;
+	private boolean pipelined = false;
+	private int blockSize = NandGeometry.DEFAULT_BLOCK_SIZE;
+	private LogicalMap logicalMap = null;
+
+	/**
+	 * Should the NAND image be memory mapped rather than read through the file channel.
+	 *
+	 * @return True if the image should be memory mapped.
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * Set whether the NAND image should be memory mapped.
+	 *
+	 * @param memoryMapped True to memory map the image.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Get the number of threads used to render images.
+	 *
+	 * @return The number of render threads.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set the number of threads used to render images. Images are rendered one after another when this is 1.
+	 *
+	 * @param threads The number of render threads.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one render thread is required");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Get the maximum height of each image in pixels.
+	 *
+	 * @return The maximum image height.
+	 */
+	public int getImageHeight() {
+		return imageHeight;
+	}
+
+	/**
+	 * Set the maximum height of each image in pixels. Tall images should be streamed.
+	 *
+	 * @param imageHeight The maximum image height.
+	 */
+	public void setImageHeight(int imageHeight) {
+		if (imageHeight < 1) {
+			throw new IllegalArgumentException("The image height must be positive");
+		}
+		this.imageHeight = imageHeight;
+	}
+
+	/**
+	 * Should images be streamed to the PNG a row at a time rather than held in memory.
+	 *
+	 * @return True if images are streamed.
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Set whether images are streamed to the PNG a row at a time rather than held in memory.
+	 *
+	 * @param streaming True to stream images.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Get how the PNG images are compressed.
+	 *
+	 * @return The PNG encoding.
+	 */
+	public PngEncoding getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Set how the PNG images are compressed.
+	 *
+	 * @param encoding The PNG encoding.
+	 */
+	public void setEncoding(PngEncoding encoding) {
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Should the device be rendered as a single Deep Zoom tile pyramid rather than numbered images.
+	 *
+	 * @return True to render a tile pyramid.
+	 */
+	public boolean isPyramid() {
+		return pyramid;
+	}
+
+	/**
+	 * Set whether the device is rendered as a single Deep Zoom tile pyramid rather than numbered images.
+	 *
+	 * @param pyramid True to render a tile pyramid.
+	 */
+	public void setPyramid(boolean pyramid) {
+		this.pyramid = pyramid;
+	}
+
+	/**
+	 * Get the page index consulted to avoid reading filled pages.
+	 *
+	 * @return The page index, or null if there is none.
+	 */
+	public PageIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Set the page index consulted to avoid reading filled pages. Pages whose data and spare are each filled with
+	 * zeros or 0xFF are drawn from the index rather than read from the image.
+	 *
+	 * @param index The page index, or null to read every page.
+	 */
+	public void setIndex(PageIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Get how erased and zeroed chunks are plotted.
+	 *
+	 * @return How erased chunks are plotted.
+	 */
+	public ErasedChunks getErased() {
+		return erased;
+	}
+
+	/**
+	 * Set how erased and zeroed chunks, those whose page data and spare are each all 0xFF or all zeros, are plotted.
+	 * Eliding them renders the images one after another, as where each image starts depends on the chunks before it.
+	 *
+	 * @param erased How erased chunks are plotted.
+	 */
+	public void setErased(ErasedChunks erased) {
+		this.erased = erased;
+	}
+
+	/**
+	 * Get the overviews rendered in place of the byte plot.
+	 *
+	 * @return The overview modes, empty to render the byte plot.
+	 */
+	public Set<OverviewPlot.Mode> getOverviews() {
+		return overviews;
+	}
+
+	/**
+	 * Set the overviews rendered in place of the byte plot. All of them are rendered in a single pass over the device.
+	 *
+	 * @param overviews The overview modes, empty to render the byte plot.
+	 */
+	public void setOverviews(Set<OverviewPlot.Mode> overviews) {
+		this.overviews = EnumSet.noneOf(OverviewPlot.Mode.class);
+		this.overviews.addAll(overviews);
+	}
+
+	/**
+	 * Get the width of the overview images in pixels.
+	 *
+	 * @return The overview width.
+	 */
+	public int getOverviewWidth() {
+		return overviewWidth;
+	}
+
+	/**
+	 * Set the width of the overview images in pixels.
+	 *
+	 * @param overviewWidth The overview width.
+	 */
+	public void setOverviewWidth(int overviewWidth) {
+		if (overviewWidth < 1) {
+			throw new IllegalArgumentException("The overview width must be positive");
+		}
+		this.overviewWidth = overviewWidth;
+	}
+
+	/**
+	 * Get the number of bytes of page data summarised by each pixel of the byte class overview.
+	 *
+	 * @return The bytes per pixel.
+	 */
+	public int getOverviewBytesPerPixel() {
+		return overviewBytesPerPixel;
+	}
+
+	/**
+	 * Set the number of bytes of page data summarised by each pixel of the byte class overview.
+	 *
+	 * @param overviewBytesPerPixel The bytes per pixel.
+	 */
+	public void setOverviewBytesPerPixel(int overviewBytesPerPixel) {
+		if (overviewBytesPerPixel < 1) {
+			throw new IllegalArgumentException("The bytes per pixel must be positive");
+		}
+		this.overviewBytesPerPixel = overviewBytesPerPixel;
+	}
+
+	/**
+	 * Get how runs of bytes are reduced to each pixel of the plot.
+	 *
+	 * @return The downsampling.
+	 */
+	public Downsampling getDownsampling() {
+		return downsampling;
+	}
+
+	/**
+	 * Set how runs of bytes are reduced to each pixel of the plot. The page data and spare of each chunk are reduced
+	 * separately, and downsampled plots are named with the aggregate and bytes per pixel.
+	 *
+	 * @param downsampling The downsampling, or Downsampling.NONE for a pixel per byte.
+	 */
+	public void setDownsampling(Downsampling downsampling) {
+		this.downsampling = downsampling;
+	}
+
+	/**
+	 * Get the time between progress lines printed to stderr.
+	 *
+	 * @return The interval in milliseconds, or 0 if no progress is printed.
+	 */
+	public long getProgressInterval() {
+		return progressInterval;
+	}
+
+	/**
+	 * Set the time between progress lines printed to stderr while plotting.
+	 *
+	 * @param progressInterval The interval in milliseconds, or 0 to print no progress.
+	 */
+	public void setProgressInterval(long progressInterval) {
+		if (progressInterval < 0) {
+			throw new IllegalArgumentException("The progress interval must not be negative");
+		}
+		this.progressInterval = progressInterval;
+	}
+
+	/**
+	 * Should reading, drawing and encoding run as a pipeline on separate threads.
+	 *
+	 * @return True to render through the pipeline.
+	 */
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	/**
+	 * Set whether reading, drawing and encoding run as a pipeline on separate threads, so the device is read in large
+	 * sequential reads while earlier pages are drawn and earlier images encoded. Streamed images, which read the
+	 * device a row at a time across its columns, are not pipelined.
+	 *
+	 * @param pipelined True to render through the pipeline.
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+	/**
+	 * Get the number of pages in each erase block of the device.
+	 *
+	 * @return The pages per block.
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Set the number of pages in each erase block of the device.
+	 *
+	 * @param blockSize The pages per block.
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Get the logical page map used to plot the logical view of the device.
+	 *
+	 * @return The map, or null to plot the physical device.
+	 */
+	public LogicalMap getLogicalMap() {
+		return logicalMap;
+	}
+
+	/**
+	 * Set the logical page map used to plot the logical view of the device, in which chunk n is the newest copy of
+	 * logical page n.
+	 *
+	 * @param logicalMap The map, or null to plot the physical device.
+	 */
+	public void setLogicalMap(LogicalMap logicalMap) {
+		this.logicalMap = logicalMap;
+	}
+}
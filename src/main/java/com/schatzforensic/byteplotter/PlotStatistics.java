@@ -0,0 +1,362 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.byteplotter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.schatzforensic.views.RowSink;
+
+/**
+ * Counts the work of a plot run and the time spent in each phase of it, and reports progress while it runs.
+ * <p>
+ * The counters are atomic so every render thread updates the one set, and phases are timed a batch of pages at a time
+ * so keeping the statistics costs a few clock reads per batch. Phases nest: time spent writing the PNG while it is
+ * being encoded counts as writing and not as encoding, and time spent encoding rows of a streamed plot as they are
+ * drawn counts as encoding and not as drawing.
+ */
+public class PlotStatistics {
+
+	/**
+	 * The phases of a plot run.
+	 */
+	public enum Phase {
+		/**
+		 * Reading pages from the device.
+		 */
+		READ,
+		/**
+		 * Drawing pages into the plot's raster.
+		 */
+		DRAW,
+		/**
+		 * Filtering and compressing the PNG.
+		 */
+		ENCODE,
+		/**
+		 * Writing the PNG to its file.
+		 */
+		WRITE
+	};
+
+	private static final int MAX_DEPTH = 8;
+
+	private final long totalPages;
+	private final int pageSize;
+	private final long startNanos = System.nanoTime();
+	private volatile long endNanos;
+
+	private final AtomicLong pages = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesRendered = new AtomicLong();
+	private final AtomicLong images = new AtomicLong();
+	private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+
+	private final ThreadLocal<Frames> frames = new ThreadLocal<Frames>() {
+		@Override
+		protected Frames initialValue() {
+			return new Frames();
+		}
+	};
+
+	private Timer timer;
+
+	/**
+	 * The phases being timed on a thread, innermost last.
+	 */
+	private static class Frames {
+		final Phase[] phases = new Phase[MAX_DEPTH];
+		final long[] starts = new long[MAX_DEPTH];
+		final long[] nested = new long[MAX_DEPTH];
+		int depth;
+	}
+
+	/**
+	 * Create the statistics of a plot run.
+	 *
+	 * @param totalPages The number of pages the run will process, used to report progress.
+	 * @param pageSize The size of each page with its spare.
+	 */
+	public PlotStatistics(long totalPages, int pageSize) {
+		this.totalPages = totalPages;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Start timing a phase on the calling thread. Every call must be matched by a call to end, in a finally block.
+	 *
+	 * @param phase The phase.
+	 */
+	public void begin(Phase phase) {
+		Frames f = frames.get();
+		if (f.depth == MAX_DEPTH) {
+			throw new IllegalStateException("Phases nested too deeply");
+		}
+		f.phases[f.depth] = phase;
+		f.nested[f.depth] = 0;
+		f.starts[f.depth] = System.nanoTime();
+		f.depth++;
+	}
+
+	/**
+	 * Stop timing the phase most recently begun on the calling thread, adding its time less that of the phases nested
+	 * in it.
+	 */
+	public void end() {
+		long now = System.nanoTime();
+		Frames f = frames.get();
+		int d = --f.depth;
+		long elapsed = now - f.starts[d];
+		nanos.addAndGet(f.phases[d].ordinal(), elapsed - f.nested[d]);
+		if (d > 0) {
+			f.nested[d - 1] += elapsed;
+		}
+	}
+
+	/**
+	 * Count pages processed.
+	 *
+	 * @param count The number of pages.
+	 * @param read The number of bytes read from the device for them, which is less than their size when filled pages
+	 *            are taken from the page index.
+	 */
+	public void addPages(int count, long read) {
+		pages.addAndGet(count);
+		bytesRead.addAndGet(read);
+	}
+
+	/**
+	 * Count bytes drawn into a plot.
+	 *
+	 * @param bytes The number of bytes of page data and spare drawn.
+	 */
+	public void addRendered(long bytes) {
+		bytesRendered.addAndGet(bytes);
+	}
+
+	/**
+	 * Count an image written.
+	 */
+	public void addImage() {
+		images.incrementAndGet();
+	}
+
+	/**
+	 * Get the number of pages processed.
+	 *
+	 * @return The number of pages.
+	 */
+	public long getPages() {
+		return pages.get();
+	}
+
+	/**
+	 * Get the number of bytes read from the device.
+	 *
+	 * @return The number of bytes.
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Get the number of bytes drawn into plots.
+	 *
+	 * @return The number of bytes.
+	 */
+	public long getBytesRendered() {
+		return bytesRendered.get();
+	}
+
+	/**
+	 * Get the number of images written.
+	 *
+	 * @return The number of images.
+	 */
+	public long getImages() {
+		return images.get();
+	}
+
+	/**
+	 * Get the time spent in a phase, summed over all threads.
+	 *
+	 * @param phase The phase.
+	 * @return The time in nanoseconds.
+	 */
+	public long getNanos(Phase phase) {
+		return nanos.get(phase.ordinal());
+	}
+
+	/**
+	 * Get the wall clock time of the run, up to when it finished or up to now if it is still running.
+	 *
+	 * @return The time in nanoseconds.
+	 */
+	public long getElapsedNanos() {
+		long end = endNanos;
+		return (end == 0 ? System.nanoTime() : end) - startNanos;
+	}
+
+	/**
+	 * Wrap a stream so the time spent writing to it counts as the WRITE phase.
+	 *
+	 * @param os The stream.
+	 * @return The timed stream.
+	 */
+	public OutputStream time(OutputStream os) {
+		return new FilterOutputStream(os) {
+			@Override
+			public void write(int b) throws IOException {
+				begin(Phase.WRITE);
+				try {
+					out.write(b);
+				} finally {
+					end();
+				}
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				begin(Phase.WRITE);
+				try {
+					out.write(b, off, len);
+				} finally {
+					end();
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				begin(Phase.WRITE);
+				try {
+					out.flush();
+				} finally {
+					end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Wrap a row sink so the time spent in it counts as the ENCODE phase.
+	 *
+	 * @param sink The sink.
+	 * @return The timed sink.
+	 */
+	public RowSink time(final RowSink sink) {
+		return new RowSink() {
+			@Override
+			public void writeRow(byte[] row, int offset) throws IOException {
+				begin(Phase.ENCODE);
+				try {
+					sink.writeRow(row, offset);
+				} finally {
+					end();
+				}
+			}
+
+			@Override
+			public void finish() throws IOException {
+				begin(Phase.ENCODE);
+				try {
+					sink.finish();
+				} finally {
+					end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Print a progress line periodically until the run finishes.
+	 *
+	 * @param out The stream to print to.
+	 * @param intervalMillis The time between progress lines.
+	 */
+	public synchronized void startProgress(final PrintStream out, long intervalMillis) {
+		timer = new Timer("progress", true);
+		timer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				out.println(getProgress());
+			}
+		}, intervalMillis, intervalMillis);
+	}
+
+	/**
+	 * Mark the run finished, stopping any progress lines.
+	 */
+	public synchronized void finish() {
+		endNanos = System.nanoTime();
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Get a progress line: the fraction of pages processed, the throughput so far and the estimated time remaining.
+	 *
+	 * @return The progress line.
+	 */
+	public String getProgress() {
+		long done = pages.get();
+		double seconds = getElapsedNanos() / 1e9;
+		double rate = seconds > 0 ? done * (double) pageSize / seconds : 0;
+		String eta = "--:--:--";
+		if (done > 0 && done < totalPages) {
+			long remaining = (long) (seconds * (totalPages - done) / done);
+			eta = String.format("%02d:%02d:%02d", remaining / 3600, remaining / 60 % 60, remaining % 60);
+		} else if (done >= totalPages) {
+			eta = "00:00:00";
+		}
+		return String.format(Locale.ROOT, "Progress: %5.1f%% %d/%d MB at %.1f MB/s, ETA %s",
+				totalPages > 0 ? 100.0 * done / totalPages : 100.0, done * pageSize / 1000000,
+				totalPages * pageSize / 1000000, rate / 1e6, eta);
+	}
+
+	/**
+	 * Get the statistics as a single line JSON object, with times in nanoseconds.
+	 *
+	 * @return The JSON summary.
+	 */
+	public String toJson() {
+		long elapsed = getElapsedNanos();
+		StringBuilder out = new StringBuilder();
+		out.append("{\"pages\":").append(pages.get());
+		out.append(",\"total_pages\":").append(totalPages);
+		out.append(",\"bytes_read\":").append(bytesRead.get());
+		out.append(",\"bytes_rendered\":").append(bytesRendered.get());
+		out.append(",\"images\":").append(images.get());
+		out.append(",\"elapsed_ns\":").append(elapsed);
+		for (Phase phase : Phase.values()) {
+			out.append(",\"").append(phase.name().toLowerCase()).append("_ns\":").append(getNanos(phase));
+		}
+		out.append(",\"mb_per_s\":").append(
+				String.format(Locale.ROOT, "%.3f", elapsed > 0 ? pages.get() * (double) pageSize * 1e3 / elapsed : 0));
+		out.append('}');
+		return out.toString();
+	}
+}
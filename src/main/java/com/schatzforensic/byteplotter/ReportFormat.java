@@ -0,0 +1,118 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.byteplotter;
+
+/**
+ * The formats IdentifyRelocations can report the markers it finds, and the rulers following grid header lines, in.
+ * Each finding is appended to a reused StringBuilder, so reporting allocates nothing per run.
+ */
+public enum ReportFormat {
+
+	/**
+	 * A line per marker, followed by a line per ruler run.
+	 */
+	TEXT {
+		@Override
+		void appendFinding(StringBuilder out, IdentifyRelocations.Match match, RulerAnalysis ruler, boolean first) {
+			out.append("Marker ").append(match.getPattern()).append(" at chunk ").append(match.getChunk())
+					.append(" offset ").append(match.getOffset()).append('\n');
+			if (ruler != null) {
+				ruler.appendText(out);
+			}
+		}
+	},
+
+	/**
+	 * A row per ruler run, or a row with empty run columns for a marker without a ruler.
+	 */
+	CSV {
+		@Override
+		void appendHeader(StringBuilder out) {
+			out.append("marker,chunk,offset,run_offset,run_start,run_length\n");
+		}
+
+		@Override
+		void appendFinding(StringBuilder out, IdentifyRelocations.Match match, RulerAnalysis ruler, boolean first) {
+			if (ruler == null) {
+				appendMatch(out, match).append(",,,\n");
+				return;
+			}
+			for (int run = 0; run < ruler.getRunCount(); run++) {
+				appendMatch(out, match).append(',').append(ruler.getOffset(run)).append(',')
+						.append(ruler.getStart(run)).append(',').append(ruler.getLength(run)).append('\n');
+			}
+		}
+
+		private StringBuilder appendMatch(StringBuilder out, IdentifyRelocations.Match match) {
+			return out.append(match.getPattern()).append(',').append(match.getChunk()).append(',')
+					.append(match.getOffset());
+		}
+	},
+
+	/**
+	 * An array of objects with marker, chunk and offset members, and a runs member for grid header lines.
+	 */
+	JSON {
+		@Override
+		void appendHeader(StringBuilder out) {
+			out.append('[');
+		}
+
+		@Override
+		void appendFinding(StringBuilder out, IdentifyRelocations.Match match, RulerAnalysis ruler, boolean first) {
+			if (!first) {
+				out.append(',');
+			}
+			out.append("\n{\"marker\":").append(match.getPattern()).append(",\"chunk\":").append(match.getChunk())
+					.append(",\"offset\":").append(match.getOffset());
+			if (ruler != null) {
+				out.append(",\"runs\":");
+				ruler.appendJson(out);
+			}
+			out.append('}');
+		}
+
+		@Override
+		void appendFooter(StringBuilder out) {
+			out.append("\n]\n");
+		}
+	};
+
+	/**
+	 * Append what comes before the first finding.
+	 */
+	void appendHeader(StringBuilder out) {
+	}
+
+	/**
+	 * Append a finding.
+	 *
+	 * @param out The text to append to.
+	 * @param match The marker found.
+	 * @param ruler The ruler the marker heads, or null.
+	 * @param first True for the first finding.
+	 */
+	abstract void appendFinding(StringBuilder out, IdentifyRelocations.Match match, RulerAnalysis ruler,
+			boolean first);
+
+	/**
+	 * Append what comes after the last finding.
+	 */
+	void appendFooter(StringBuilder out) {
+	}
+}
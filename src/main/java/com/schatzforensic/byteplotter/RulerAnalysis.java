@@ -0,0 +1,153 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.byteplotter;
+
+/**
+ * The decoded ruler of a grid header line: the runs of consecutive grid offsets found across the chunk. A run
+ * starting at chunk offset O with grid offset S and length L means chunk offsets O to O + L - 1 hold grid offsets S to
+ * S + L - 1, so any run not starting at its own offset has been relocated.
+ * <p>
+ * The runs are held in primitive arrays sized to fit, so decoding a ruler allocates three arrays whatever the number
+ * of runs.
+ */
+public class RulerAnalysis {
+
+	private final long headerChunk;
+	private final int[] offsets;
+	private final int[] starts;
+	private final int[] lengths;
+
+	/**
+	 * Decode a ruler. Each byte of the header line is the high byte of a grid offset whose low byte is at the same
+	 * position in the ruler chunk.
+	 *
+	 * @param headerChunk The chunk holding the header line.
+	 * @param headerLine The header line chunk, with the marker cleared.
+	 * @param ruler The ruler chunk.
+	 * @param length The number of bytes of each chunk to decode.
+	 */
+	public RulerAnalysis(long headerChunk, byte[] headerLine, byte[] ruler, int length) {
+		this.headerChunk = headerChunk;
+
+		int runs = 0;
+		int last = 0;
+		for (int i = 0; i < length; i++) {
+			int value = gridOffset(headerLine, ruler, i);
+			if (i == 0 || value != last + 1) {
+				runs++;
+			}
+			last = value;
+		}
+
+		offsets = new int[runs];
+		starts = new int[runs];
+		lengths = new int[runs];
+		int run = -1;
+		for (int i = 0; i < length; i++) {
+			int value = gridOffset(headerLine, ruler, i);
+			if (i == 0 || value != last + 1) {
+				run++;
+				offsets[run] = i;
+				starts[run] = value;
+			}
+			lengths[run]++;
+			last = value;
+		}
+	}
+
+	private static int gridOffset(byte[] headerLine, byte[] ruler, int i) {
+		return (headerLine[i] << 8) + (ruler[i] & 0xff);
+	}
+
+	/**
+	 * Get the chunk holding the header line.
+	 *
+	 * @return The header chunk.
+	 */
+	public long getHeaderChunk() {
+		return headerChunk;
+	}
+
+	/**
+	 * Get the number of runs.
+	 *
+	 * @return The number of runs of consecutive grid offsets.
+	 */
+	public int getRunCount() {
+		return offsets.length;
+	}
+
+	/**
+	 * Get the chunk offset a run starts at.
+	 *
+	 * @param run The run.
+	 * @return The chunk offset.
+	 */
+	public int getOffset(int run) {
+		return offsets[run];
+	}
+
+	/**
+	 * Get the grid offset a run starts with.
+	 *
+	 * @param run The run.
+	 * @return The grid offset.
+	 */
+	public int getStart(int run) {
+		return starts[run];
+	}
+
+	/**
+	 * Get the length of a run.
+	 *
+	 * @param run The run.
+	 * @return The number of consecutive grid offsets.
+	 */
+	public int getLength(int run) {
+		return lengths[run];
+	}
+
+	/**
+	 * Append the runs as text, one per line: Offset O: S-E (L).
+	 *
+	 * @param out The text to append to.
+	 */
+	public void appendText(StringBuilder out) {
+		for (int run = 0; run < offsets.length; run++) {
+			out.append("Offset ").append(offsets[run]).append(": ").append(starts[run]).append('-')
+					.append(starts[run] + lengths[run] - 1).append(" (").append(lengths[run]).append(")\n");
+		}
+	}
+
+	/**
+	 * Append the runs as JSON, an array of objects with offset, start and length members.
+	 *
+	 * @param out The text to append to.
+	 */
+	public void appendJson(StringBuilder out) {
+		out.append('[');
+		for (int run = 0; run < offsets.length; run++) {
+			if (run > 0) {
+				out.append(',');
+			}
+			out.append("{\"offset\":").append(offsets[run]).append(",\"start\":").append(starts[run])
+					.append(",\"length\":").append(lengths[run]).append('}');
+		}
+		out.append(']');
+	}
+}
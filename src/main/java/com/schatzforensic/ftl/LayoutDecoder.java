@@ -0,0 +1,117 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.ftl;
+
+import java.nio.ByteBuffer;
+
+import com.schatzforensic.ftl.SpareLayout.Field;
+import com.schatzforensic.ftl.SpareLayout.Range;
+
+/**
+ * Decodes spares whose fields are at fixed places, as described by a SpareLayout.
+ */
+public class LayoutDecoder implements OobDecoder {
+
+	private final SpareLayout layout;
+	private final Range bad;
+	private final Range ecc;
+	private final Range logicalBlock;
+	private final Range logicalPage;
+	private final Range sequence;
+
+	/**
+	 * Create a decoder.
+	 *
+	 * @param layout Where the fields are.
+	 */
+	public LayoutDecoder(SpareLayout layout) {
+		this.layout = layout;
+		this.bad = layout.get(Field.BAD_BLOCK);
+		this.ecc = layout.get(Field.ECC);
+		this.logicalBlock = layout.get(Field.LOGICAL_BLOCK);
+		this.logicalPage = layout.get(Field.LOGICAL_PAGE);
+		this.sequence = layout.get(Field.SEQUENCE);
+	}
+
+	/**
+	 * Get the layout decoded.
+	 *
+	 * @return The layout.
+	 */
+	public SpareLayout getLayout() {
+		return layout;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.ftl.OobDecoder#decode(java.nio.ByteBuffer, int, int, com.schatzforensic.ftl.SpareRecord)
+	 */
+	@Override
+	public void decode(ByteBuffer spare, int offset, int length, SpareRecord record) {
+		if (layout.getMinimumSpareSize() > length) {
+			throw new IllegalArgumentException("Spare layout " + layout + " does not fit a " + length + " byte spare");
+		}
+		boolean erased = true;
+		for (int i = offset; i < offset + length && erased; i++) {
+			erased = spare.get(i) == (byte) 0xff;
+		}
+		record.setErased(erased);
+
+		boolean isBad = false;
+		if (bad != null) {
+			for (int i = 0; i < bad.getLength(); i++) {
+				isBad |= spare.get(offset + bad.getOffset() + i) != (byte) 0xff;
+			}
+		}
+		record.setBadBlock(isBad);
+
+		if (ecc != null) {
+			byte[] dst = record.getEccBuffer(ecc.getLength());
+			for (int i = 0; i < dst.length; i++) {
+				dst[i] = spare.get(offset + ecc.getOffset() + i);
+			}
+		} else {
+			record.getEccBuffer(0);
+		}
+
+		record.setLogicalBlock(number(spare, offset, logicalBlock));
+		record.setLogicalPage(number(spare, offset, logicalPage));
+		record.setSequence(number(spare, offset, sequence));
+	}
+
+	/**
+	 * Read an unsigned number.
+	 *
+	 * @return The number, or -1 if the layout has no such field or every byte of it is 0xFF.
+	 */
+	private static long number(ByteBuffer spare, int offset, Range range) {
+		if (range == null) {
+			return -1;
+		}
+		long value = 0;
+		boolean unwritten = true;
+		int start = offset + range.getOffset();
+		for (int i = 0; i < range.getLength(); i++) {
+			int b = spare.get(range.isLittleEndian() ? start + range.getLength() - 1 - i : start + i) & 0xff;
+			value = (value << 8) | b;
+			unwritten &= b == 0xff;
+		}
+		return unwritten || value < 0 ? -1 : value;
+	}
+}
@@ -0,0 +1,454 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.ftl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.schatzforensic.nanddevice.NANDDevice;
+import com.schatzforensic.nanddevice.NandBlocks;
+import com.schatzforensic.nanddevice.NandGeometry;
+
+/**
+ * The logical to physical page map of a NAND device, built from the flash translation layer metadata in its spares.
+ * <p>
+ * The map is built in one pass over the spares, a block at a time, without reading the page data. Pages in blocks
+ * whose first page carries a bad block marker, erased pages, and pages with no logical address or one beyond the size
+ * of the device are left out. Where several physical pages hold the same logical page, the one with the highest
+ * sequence number is kept, and of those with equal sequence numbers the last on the device. A page whose logical block
+ * or sequence number is unwritten takes that of an earlier page in its block, as FTLs which map whole blocks often
+ * record them in the first page only.
+ * <p>
+ * The map is held in primitive arrays indexed by logical page, sixteen bytes for each page of the device. It can be
+ * saved to a sidecar file beside the image, so it is built once rather than on every run. The file is big endian:
+ *
+ * <pre>
+ * header: magic "NANDFTL2" (8), page data size (4), spare size (4), spares at end (1), reserved (3), pages per block
+ *         (4), chunks (8), image size (8), image modified (8), logical pages (8), bad blocks (8), erased (8),
+ *         unmapped (8), superseded (8), mapped (8), layout length (4), layout (UTF-8)
+ * body:   physical page of each logical page (8 each), sequence number of each logical page (8 each), bad block
+ *         bitmap (8 per 64 blocks)
+ * </pre>
+ *
+ * The image size and modification time are those of the image when it was mapped, so a saved map is not used for an
+ * image that has since changed.
+ */
+public class LogicalMap {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] MAGIC = "NANDFTL2".getBytes(Charset.forName("US-ASCII"));
+	private static final int HEADER_SIZE = 100;
+	private static final int COPY_LONGS = 128 * 1024;
+
+	private final long chunks;
+	private final int blockSize;
+	private final long[] physical;
+	private final long[] sequence;
+	private final long[] badBlocks;
+	private long logicalSize;
+
+	private long badBlockCount;
+	private long erasedPages;
+	private long unmappedPages;
+	private long supersededPages;
+	private long mappedPages;
+
+	/**
+	 * Create an empty map.
+	 *
+	 * @param chunks The number of chunks on the device, which is also the most logical pages it may hold.
+	 * @param blockSize The number of pages in each erase block.
+	 */
+	LogicalMap(long chunks, int blockSize) {
+		if (chunks > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many chunks to map");
+		}
+		this.chunks = chunks;
+		this.blockSize = blockSize;
+		this.physical = new long[(int) chunks];
+		this.sequence = new long[(int) chunks];
+		Arrays.fill(physical, -1);
+		Arrays.fill(sequence, -1);
+		this.badBlocks = new long[(int) (((chunks + blockSize - 1) / blockSize + 63) / 64)];
+	}
+
+	/**
+	 * Build the map of a device.
+	 *
+	 * @param device The device to read the spares of.
+	 * @param decoder How to decode each spare.
+	 * @return The map.
+	 * @throws IOException If reading the device failed.
+	 */
+	public static LogicalMap build(NANDDevice device, final OobDecoder decoder) throws IOException {
+		final LogicalMap map = new LogicalMap(device.getSize(), device.getBlockSize());
+		final int spareSize = device.getSpareSize();
+		final SpareRecord record = new SpareRecord();
+		NandBlocks.scan(device, false, true, new NandBlocks.Visitor() {
+			@Override
+			public void block(long block, int pages, ByteBuffer data, ByteBuffer spare) throws IOException {
+				long blockLogical = -1;
+				long blockSequence = -1;
+				for (int p = 0; p < pages; p++) {
+					decoder.decode(spare, p * spareSize, spareSize, record);
+					if (p == 0 && record.isBadBlock()) {
+						map.markBad(block);
+						return;
+					}
+					if (record.isErased()) {
+						map.erasedPages++;
+						continue;
+					}
+					if (record.getLogicalBlock() >= 0) {
+						blockLogical = record.getLogicalBlock();
+					}
+					if (record.getSequence() >= 0) {
+						blockSequence = record.getSequence();
+					}
+					long logical = record.getLogicalPage();
+					if (logical < 0 && blockLogical >= 0) {
+						logical = blockLogical * map.blockSize + p;
+					}
+					map.put(logical, block * map.blockSize + p, blockSequence);
+				}
+			}
+		});
+		return map;
+	}
+
+	private void markBad(long block) {
+		badBlocks[(int) (block >>> 6)] |= 1L << (block & 63);
+		badBlockCount++;
+	}
+
+	/**
+	 * Record that a physical page holds a logical page, unless a newer copy is already known.
+	 *
+	 * @param logical The logical page, or -1 if the page has none.
+	 * @param chunk The physical page.
+	 * @param seq The sequence number, or -1.
+	 */
+	void put(long logical, long chunk, long seq) {
+		if (logical < 0 || logical >= chunks) {
+			unmappedPages++;
+			return;
+		}
+		int i = (int) logical;
+		if (physical[i] < 0) {
+			mappedPages++;
+			logicalSize = Math.max(logicalSize, logical + 1);
+		} else {
+			supersededPages++;
+			if (seq < sequence[i]) {
+				return;
+			}
+		}
+		physical[i] = chunk;
+		sequence[i] = seq;
+	}
+
+	/**
+	 * Get the sidecar file for an image's map: the image name followed by the geometry, the pages per block and .ftl.
+	 *
+	 * @param image The image file.
+	 * @param geometry The geometry of the image.
+	 * @param blockSize The number of pages in each erase block.
+	 * @return The map file.
+	 */
+	public static File getFile(File image, NandGeometry geometry, int blockSize) {
+		return new File(image.getAbsoluteFile().getParentFile(), String.format("%s-%d-%d-%s-%d.ftl", image.getName(),
+				geometry.getPageDataSize(), geometry.getSpareSize(), geometry.getSpareLocation(), blockSize));
+	}
+
+	/**
+	 * Write the map to a file.
+	 *
+	 * @param file The file to write.
+	 * @param geometry The geometry of the image mapped.
+	 * @param layout The spare layout the map was decoded with, checked when the map is opened.
+	 * @param imageSize The size of the image in bytes.
+	 * @param imageModified When the image was last modified.
+	 * @throws IOException
+	 */
+	public void save(File file, NandGeometry geometry, String layout, long imageSize, long imageModified)
+			throws IOException {
+		byte[] layoutBytes = layout.getBytes(UTF8);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + layoutBytes.length);
+		header.put(MAGIC);
+		header.putInt(geometry.getPageDataSize());
+		header.putInt(geometry.getSpareSize());
+		header.put((byte) (geometry.isSpareNotInBand() ? 1 : 0));
+		header.position(header.position() + 3);
+		header.putInt(blockSize);
+		header.putLong(chunks);
+		header.putLong(imageSize);
+		header.putLong(imageModified);
+		header.putLong(logicalSize);
+		header.putLong(badBlockCount);
+		header.putLong(erasedPages);
+		header.putLong(unmappedPages);
+		header.putLong(supersededPages);
+		header.putLong(mappedPages);
+		header.putInt(layoutBytes.length);
+		header.put(layoutBytes);
+		header.flip();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			write(channel, header);
+			ByteBuffer buf = ByteBuffer.allocate(COPY_LONGS * 8);
+			writeLongs(channel, buf, physical, (int) logicalSize);
+			writeLongs(channel, buf, sequence, (int) logicalSize);
+			writeLongs(channel, buf, badBlocks, badBlocks.length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Open a saved map, checking it was built for the image being read as it is now.
+	 *
+	 * @param file The map file.
+	 * @param geometry The geometry of the image being read.
+	 * @param blockSize The number of pages in each erase block.
+	 * @param chunks The number of chunks in the image being read.
+	 * @param layout The spare layout the image is being decoded with.
+	 * @param imageSize The size of the image being read in bytes.
+	 * @param imageModified When the image being read was last modified.
+	 * @return The map.
+	 * @throws IOException If the map could not be read, or does not match the image.
+	 */
+	public static LogicalMap open(File file, NandGeometry geometry, int blockSize, long chunks, String layout,
+			long imageSize, long imageModified) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			read(channel, header);
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException(file + " is not a logical page map, or was written by an older version");
+			}
+			NandGeometry mapped = new NandGeometry(header.getInt(), header.getInt(), header.get() != 0);
+			header.position(header.position() + 3);
+			int mappedBlockSize = header.getInt();
+			long mappedChunks = header.getLong();
+			if (!mapped.equals(geometry) || mappedBlockSize != blockSize || mappedChunks != chunks) {
+				throw new IOException(String.format("%s maps %d chunks of %s in blocks of %d, not %d chunks of %s in "
+						+ "blocks of %d", file, mappedChunks, mapped, mappedBlockSize, chunks, geometry, blockSize));
+			}
+			if (header.getLong() != imageSize || header.getLong() != imageModified) {
+				throw new IOException(file + " was built before the image last changed");
+			}
+			LogicalMap map = new LogicalMap(chunks, blockSize);
+			map.logicalSize = header.getLong();
+			map.badBlockCount = header.getLong();
+			map.erasedPages = header.getLong();
+			map.unmappedPages = header.getLong();
+			map.supersededPages = header.getLong();
+			map.mappedPages = header.getLong();
+			int layoutLength = header.getInt();
+			if (map.logicalSize < 0 || map.logicalSize > chunks || layoutLength < 0 || layoutLength > 64 * 1024) {
+				throw new IOException(file + " is corrupt");
+			}
+			ByteBuffer layoutBytes = ByteBuffer.allocate(layoutLength);
+			read(channel, layoutBytes);
+			String mappedLayout = new String(layoutBytes.array(), UTF8);
+			if (!mappedLayout.equals(layout)) {
+				throw new IOException(String.format("%s was decoded with spare layout %s, not %s", file, mappedLayout,
+						layout));
+			}
+			ByteBuffer buf = ByteBuffer.allocate(COPY_LONGS * 8);
+			readLongs(channel, buf, map.physical, (int) map.logicalSize);
+			readLongs(channel, buf, map.sequence, (int) map.logicalSize);
+			readLongs(channel, buf, map.badBlocks, map.badBlocks.length);
+			return map;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void writeLongs(FileChannel channel, ByteBuffer buf, long[] values, int count) throws IOException {
+		buf.clear();
+		LongBuffer longs = buf.asLongBuffer();
+		for (int i = 0; i < count; i += COPY_LONGS) {
+			int n = Math.min(COPY_LONGS, count - i);
+			longs.clear();
+			longs.put(values, i, n);
+			buf.clear();
+			buf.limit(n * 8);
+			write(channel, buf);
+		}
+	}
+
+	private static void readLongs(FileChannel channel, ByteBuffer buf, long[] values, int count) throws IOException {
+		buf.clear();
+		LongBuffer longs = buf.asLongBuffer();
+		for (int i = 0; i < count; i += COPY_LONGS) {
+			int n = Math.min(COPY_LONGS, count - i);
+			buf.clear();
+			buf.limit(n * 8);
+			read(channel, buf);
+			longs.clear();
+			longs.get(values, i, n);
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	private static void read(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (channel.read(buf) < 0) {
+				throw new IOException("Logical page map is truncated");
+			}
+		}
+	}
+
+	/**
+	 * Get the number of chunks on the device mapped.
+	 *
+	 * @return The number of physical pages.
+	 */
+	public long getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * Get the number of pages in each erase block.
+	 *
+	 * @return The pages per block.
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Get the size of the logical device: one more than the highest logical page found.
+	 *
+	 * @return The number of logical pages.
+	 */
+	public long getLogicalSize() {
+		return logicalSize;
+	}
+
+	/**
+	 * Get the physical page holding the newest copy of a logical page.
+	 *
+	 * @param logical The logical page.
+	 * @return The physical page, or -1 if no page holds the logical page.
+	 */
+	public long getPhysical(long logical) {
+		return logical < 0 || logical >= logicalSize ? -1 : physical[(int) logical];
+	}
+
+	/**
+	 * Get the sequence number of the newest copy of a logical page.
+	 *
+	 * @param logical The logical page.
+	 * @return The sequence number, or -1 if unknown or the page is not mapped.
+	 */
+	public long getSequence(long logical) {
+		return logical < 0 || logical >= logicalSize ? -1 : sequence[(int) logical];
+	}
+
+	/**
+	 * Is a block marked bad.
+	 *
+	 * @param block The block.
+	 * @return True if its first page carries a bad block marker.
+	 */
+	public boolean isBadBlock(long block) {
+		return (badBlocks[(int) (block >>> 6)] & (1L << (block & 63))) != 0;
+	}
+
+	/**
+	 * Get the number of blocks marked bad.
+	 *
+	 * @return The number of bad blocks.
+	 */
+	public long getBadBlockCount() {
+		return badBlockCount;
+	}
+
+	/**
+	 * Get the number of erased pages outside bad blocks.
+	 *
+	 * @return The number of erased pages.
+	 */
+	public long getErasedPages() {
+		return erasedPages;
+	}
+
+	/**
+	 * Get the number of written pages with no logical address, or one beyond the size of the device.
+	 *
+	 * @return The number of unmapped pages.
+	 */
+	public long getUnmappedPages() {
+		return unmappedPages;
+	}
+
+	/**
+	 * Get the number of physical pages holding a copy of a logical page other than the one mapped, whether older or
+	 * newer and discarded, so the number of old versions which may be recovered.
+	 *
+	 * @return The number of superseded pages.
+	 */
+	public long getSupersededPages() {
+		return supersededPages;
+	}
+
+	/**
+	 * Get the number of logical pages mapped.
+	 *
+	 * @return The number of logical pages with a physical page.
+	 */
+	public long getMappedPages() {
+		return mappedPages;
+	}
+
+	/**
+	 * Print the counts of the map.
+	 *
+	 * @param out The stream to print to.
+	 */
+	public void printSummary(PrintStream out) {
+		out.println(String.format("Physical pages:     %d in %d blocks of %d", chunks, (chunks + blockSize - 1)
+				/ blockSize, blockSize));
+		out.println(String.format("Bad blocks:         %d", badBlockCount));
+		out.println(String.format("Erased pages:       %d", erasedPages));
+		out.println(String.format("Unmapped pages:     %d", unmappedPages));
+		out.println(String.format("Superseded pages:   %d", supersededPages));
+		out.println(String.format("Logical pages:      %d mapped of %d", mappedPages, logicalSize));
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.ftl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.schatzforensic.nanddevice.AbstractNandDevice;
+import com.schatzforensic.nanddevice.NANDDevice;
+
+/**
+ * The logical device a flash translation layer presents, reconstructed from a physical NAND device and its logical
+ * page map. Chunk n of this device is the newest copy of logical page n. Logical pages with no physical copy read as
+ * erased, with every byte of the data and spare 0xFF.
+ * <p>
+ * Runs of logical pages held in consecutive physical pages, as whole mapped blocks are, are read from the physical
+ * device with a single readPages call.
+ */
+public class LogicalNandDevice extends AbstractNandDevice {
+
+	private final NANDDevice physical;
+	private final LogicalMap map;
+
+	/**
+	 * Create a logical device.
+	 *
+	 * @param physical The physical device.
+	 * @param map The logical page map of the physical device.
+	 */
+	public LogicalNandDevice(NANDDevice physical, LogicalMap map) {
+		this.physical = physical;
+		this.map = map;
+	}
+
+	/**
+	 * Get the physical device read.
+	 *
+	 * @return The physical device.
+	 */
+	public NANDDevice getPhysical() {
+		return physical;
+	}
+
+	/**
+	 * Get the logical page map.
+	 *
+	 * @return The map.
+	 */
+	public LogicalMap getMap() {
+		return map;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.NANDDevice#readPage(long, java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void readPage(long chunk, ByteBuffer data, ByteBuffer spare) throws IOException {
+		long source = map.getPhysical(chunk);
+		if (source < 0) {
+			if (data != null) {
+				if (data.remaining() != getPageDataSize()) {
+					throw new IllegalArgumentException();
+				}
+				erase(data, getPageDataSize());
+			}
+			if (spare != null) {
+				if (spare.remaining() != getSpareSize()) {
+					throw new IllegalArgumentException();
+				}
+				erase(spare, getSpareSize());
+			}
+		} else {
+			physical.readPage(source, data, spare);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.NANDDevice#readPages(long, int, java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void readPages(long firstChunk, int count, ByteBuffer data, ByteBuffer spare) throws IOException {
+		if (data != null && data.remaining() != count * getPageDataSize()) {
+			throw new IllegalArgumentException();
+		}
+		if (spare != null && spare.remaining() != count * getSpareSize()) {
+			throw new IllegalArgumentException();
+		}
+		if (firstChunk + count > getSize()) {
+			throw new IOException("Page read beyond end of device");
+		}
+		if (data == null && spare == null) {
+			return;
+		}
+
+		int dataLimit = data == null ? 0 : data.limit();
+		int spareLimit = spare == null ? 0 : spare.limit();
+		try {
+			int i = 0;
+			while (i < count) {
+				// Gather the run of pages which are mapped to consecutive physical pages, or unmapped.
+				long source = map.getPhysical(firstChunk + i);
+				int run = 1;
+				while (i + run < count) {
+					long next = map.getPhysical(firstChunk + i + run);
+					if (source < 0 ? next >= 0 : next != source + run) {
+						break;
+					}
+					run++;
+				}
+
+				if (source < 0) {
+					if (data != null) {
+						erase(data, run * getPageDataSize());
+					}
+					if (spare != null) {
+						erase(spare, run * getSpareSize());
+					}
+				} else {
+					if (data != null) {
+						data.limit(data.position() + run * getPageDataSize());
+					}
+					if (spare != null) {
+						spare.limit(spare.position() + run * getSpareSize());
+					}
+					physical.readPages(source, run, data, spare);
+				}
+				i += run;
+			}
+		} finally {
+			if (data != null) {
+				data.limit(dataLimit);
+			}
+			if (spare != null) {
+				spare.limit(spareLimit);
+			}
+		}
+	}
+
+	private static void erase(ByteBuffer buf, int length) {
+		if (buf.hasArray()) {
+			int start = buf.arrayOffset() + buf.position();
+			Arrays.fill(buf.array(), start, start + length, (byte) 0xff);
+			buf.position(buf.position() + length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				buf.put((byte) 0xff);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.NANDDevice#getPageDataSize()
+	 */
+	@Override
+	public int getPageDataSize() {
+		return physical.getPageDataSize();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.NANDDevice#getSpareSize()
+	 */
+	@Override
+	public int getSpareSize() {
+		return physical.getSpareSize();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.NANDDevice#getSize()
+	 */
+	@Override
+	public long getSize() {
+		return map.getLogicalSize();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.NANDDevice#getBlockSize()
+	 */
+	@Override
+	public int getBlockSize() {
+		return physical.getBlockSize();
+	}
+}
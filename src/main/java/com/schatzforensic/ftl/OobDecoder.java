@@ -0,0 +1,37 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.ftl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the flash translation layer metadata from a page's spare. Decoders fill in a record reused from one page to
+ * the next rather than creating objects, so a whole device can be decoded without garbage.
+ */
+public interface OobDecoder {
+
+	/**
+	 * Decode a spare.
+	 *
+	 * @param spare The buffer holding the spare.
+	 * @param offset The absolute offset of the spare in the buffer.
+	 * @param length The spare size.
+	 * @param record The record to fill in. Every field is set, to its unknown value where the spare does not have it.
+	 */
+	public void decode(ByteBuffer spare, int offset, int length, SpareRecord record);
+}
@@ -0,0 +1,224 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.ftl;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Where the fields a flash translation layer keeps in each spare are, which differs from one controller and FTL to the
+ * next. Each field is a run of bytes at an offset in the spare, holding a number in either byte order.
+ */
+public class SpareLayout {
+
+	/**
+	 * The fields of a spare.
+	 */
+	public enum Field {
+		/**
+		 * The bad block marker, 0xFF in every byte unless the block is bad. It is read from the first page of each
+		 * block.
+		 */
+		BAD_BLOCK("bad"),
+		/**
+		 * The error correcting code bytes of the page.
+		 */
+		ECC("ecc"),
+		/**
+		 * The logical block the physical block holds, for FTLs which map whole blocks. Each page holds the page of
+		 * the logical block at the same offset.
+		 */
+		LOGICAL_BLOCK("block"),
+		/**
+		 * The logical page the physical page holds, for FTLs which map individual pages.
+		 */
+		LOGICAL_PAGE("page"),
+		/**
+		 * A counter the FTL increments as it writes, so the newest copy of a logical page has the highest value.
+		 */
+		SEQUENCE("seq");
+
+		private final String key;
+
+		private Field(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * Get the name of the field in a layout specification.
+		 *
+		 * @return The name.
+		 */
+		public String getKey() {
+			return key;
+		}
+	};
+
+	/**
+	 * A run of bytes in the spare.
+	 */
+	public static class Range {
+		private final int offset;
+		private final int length;
+		private final boolean littleEndian;
+
+		/**
+		 * Create a range.
+		 *
+		 * @param offset The offset in the spare of the first byte.
+		 * @param length The number of bytes.
+		 * @param littleEndian True if the least significant byte is first.
+		 */
+		public Range(int offset, int length, boolean littleEndian) {
+			if (offset < 0 || length < 1) {
+				throw new IllegalArgumentException("Invalid spare field range");
+			}
+			this.offset = offset;
+			this.length = length;
+			this.littleEndian = littleEndian;
+		}
+
+		/**
+		 * Get the offset of the first byte.
+		 *
+		 * @return The offset in the spare.
+		 */
+		public int getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Get the number of bytes.
+		 *
+		 * @return The length.
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * Is the least significant byte first.
+		 *
+		 * @return True for little endian.
+		 */
+		public boolean isLittleEndian() {
+			return littleEndian;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d:%d:%s", offset, length, littleEndian ? "le" : "be");
+		}
+	}
+
+	private final Map<Field, Range> fields;
+
+	/**
+	 * Create a layout.
+	 *
+	 * @param fields Where each field present is. Numeric fields may be at most eight bytes.
+	 */
+	public SpareLayout(Map<Field, Range> fields) {
+		for (Map.Entry<Field, Range> e : fields.entrySet()) {
+			if (e.getKey() != Field.ECC && e.getKey() != Field.BAD_BLOCK && e.getValue().getLength() > 8) {
+				throw new IllegalArgumentException("Spare field " + e.getKey().getKey() + " is longer than 8 bytes");
+			}
+		}
+		if (fields.containsKey(Field.LOGICAL_BLOCK) && fields.containsKey(Field.LOGICAL_PAGE)) {
+			throw new IllegalArgumentException("A layout has a logical block or a logical page, not both");
+		}
+		this.fields = new EnumMap<Field, Range>(Field.class);
+		this.fields.putAll(fields);
+	}
+
+	/**
+	 * Parse a layout of the form FIELD=OFFSET:LENGTH[:le|be],... where each FIELD is bad, ecc, block, page or seq.
+	 * Numbers are little endian unless be is given.
+	 *
+	 * @param spec The layout.
+	 * @return The layout.
+	 * @throws IllegalArgumentException If the layout is malformed.
+	 */
+	public static SpareLayout parse(String spec) {
+		Map<Field, Range> fields = new EnumMap<Field, Range>(Field.class);
+		for (String item : spec.split(",")) {
+			String[] kv = item.trim().split("=");
+			if (kv.length != 2) {
+				throw new IllegalArgumentException("Invalid spare field: " + item);
+			}
+			Field field = null;
+			for (Field f : Field.values()) {
+				if (f.getKey().equals(kv[0].trim())) {
+					field = f;
+				}
+			}
+			if (field == null) {
+				throw new IllegalArgumentException("Unknown spare field: " + kv[0]);
+			}
+			String[] parts = kv[1].trim().split(":");
+			if (parts.length < 2 || parts.length > 3) {
+				throw new IllegalArgumentException("Invalid spare field range: " + kv[1]);
+			}
+			boolean littleEndian = true;
+			if (parts.length == 3) {
+				if (parts[2].equals("be")) {
+					littleEndian = false;
+				} else if (!parts[2].equals("le")) {
+					throw new IllegalArgumentException("Invalid byte order: " + parts[2]);
+				}
+			}
+			fields.put(field, new Range(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), littleEndian));
+		}
+		return new SpareLayout(fields);
+	}
+
+	/**
+	 * Get where a field is.
+	 *
+	 * @param field The field.
+	 * @return The range, or null if the layout does not have the field.
+	 */
+	public Range get(Field field) {
+		return fields.get(field);
+	}
+
+	/**
+	 * Get the smallest spare the layout fits in.
+	 *
+	 * @return The size in bytes.
+	 */
+	public int getMinimumSpareSize() {
+		int size = 0;
+		for (Range r : fields.values()) {
+			size = Math.max(size, r.getOffset() + r.getLength());
+		}
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Field, Range> e : fields.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(e.getKey().getKey()).append('=').append(e.getValue());
+		}
+		return sb.toString();
+	}
+}
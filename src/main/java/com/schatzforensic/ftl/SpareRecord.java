@@ -0,0 +1,144 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.ftl;
+
+/**
+ * The flash translation layer metadata decoded from one spare. Numeric fields are -1 where the spare does not hold
+ * them, whether because the layout has no such field or because it is unwritten, all 0xFF.
+ */
+public class SpareRecord {
+
+	private boolean erased;
+	private boolean badBlock;
+	private long logicalBlock = -1;
+	private long logicalPage = -1;
+	private long sequence = -1;
+	private byte[] ecc = new byte[0];
+
+	/**
+	 * Is every byte of the spare 0xFF, as it is when the page has not been written since its block was erased.
+	 *
+	 * @return True if the spare is erased.
+	 */
+	public boolean isErased() {
+		return erased;
+	}
+
+	/**
+	 * Set whether the spare is erased.
+	 *
+	 * @param erased True if every byte is 0xFF.
+	 */
+	public void setErased(boolean erased) {
+		this.erased = erased;
+	}
+
+	/**
+	 * Does the spare's bad block marker mark its block bad. Only the marker in the first page of a block is consulted.
+	 *
+	 * @return True if the marker is set.
+	 */
+	public boolean isBadBlock() {
+		return badBlock;
+	}
+
+	/**
+	 * Set whether the bad block marker is set.
+	 *
+	 * @param badBlock True if the marker is set.
+	 */
+	public void setBadBlock(boolean badBlock) {
+		this.badBlock = badBlock;
+	}
+
+	/**
+	 * Get the logical block held by the page's physical block.
+	 *
+	 * @return The logical block, or -1.
+	 */
+	public long getLogicalBlock() {
+		return logicalBlock;
+	}
+
+	/**
+	 * Set the logical block.
+	 *
+	 * @param logicalBlock The logical block, or -1.
+	 */
+	public void setLogicalBlock(long logicalBlock) {
+		this.logicalBlock = logicalBlock;
+	}
+
+	/**
+	 * Get the logical page held by the page.
+	 *
+	 * @return The logical page, or -1.
+	 */
+	public long getLogicalPage() {
+		return logicalPage;
+	}
+
+	/**
+	 * Set the logical page.
+	 *
+	 * @param logicalPage The logical page, or -1.
+	 */
+	public void setLogicalPage(long logicalPage) {
+		this.logicalPage = logicalPage;
+	}
+
+	/**
+	 * Get the write sequence number of the page or its block.
+	 *
+	 * @return The sequence number, or -1.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Set the write sequence number.
+	 *
+	 * @param sequence The sequence number, or -1.
+	 */
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Get the ECC bytes of the page. The array is reused for the next page decoded.
+	 *
+	 * @return The ECC bytes, empty if the layout has none.
+	 */
+	public byte[] getEcc() {
+		return ecc;
+	}
+
+	/**
+	 * Get an array of a length for a decoder to copy the ECC bytes into, reusing the last if it is the same length.
+	 *
+	 * @param length The number of ECC bytes.
+	 * @return The array to copy them into.
+	 */
+	public byte[] getEccBuffer(int length) {
+		if (ecc.length != length) {
+			ecc = new byte[length];
+		}
+		return ecc;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.nanddevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The erase block methods of a NAND device, built on its page reads. A block is a contiguous run of chunks, so it is
+ * read with a single readPages call: one read of the image when the spares are inband, and one each for the page data
+ * and the spares when they are at the end.
+ */
+public abstract class AbstractNandDevice implements NANDDevice {
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.schatzforensic.nanddevice.NANDDevice#getBlockCount()
+	 */
+	@Override
+	public long getBlockCount() throws IOException {
+		long pagesPerBlock = getBlockSize();
+		return (getSize() + pagesPerBlock - 1) / pagesPerBlock;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.schatzforensic.nanddevice.NANDDevice#readBlock(long, java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	@Override
+	public int readBlock(long block, ByteBuffer data, ByteBuffer spare) throws IOException {
+		int pagesPerBlock = getBlockSize();
+		long firstChunk = block * pagesPerBlock;
+		long chunks = getSize();
+		if (block < 0 || firstChunk >= chunks) {
+			throw new IOException("Block read beyond end of device");
+		}
+		if (data != null && data.remaining() < pagesPerBlock * getPageDataSize()) {
+			throw new IllegalArgumentException();
+		}
+		if (spare != null && spare.remaining() < pagesPerBlock * getSpareSize()) {
+			throw new IllegalArgumentException();
+		}
+
+		int count = (int) Math.min(pagesPerBlock, chunks - firstChunk);
+		int dataLimit = data == null ? 0 : data.limit();
+		int spareLimit = spare == null ? 0 : spare.limit();
+		try {
+			if (data != null) {
+				data.limit(data.position() + count * getPageDataSize());
+			}
+			if (spare != null) {
+				spare.limit(spare.position() + count * getSpareSize());
+			}
+			readPages(firstChunk, count, data, spare);
+		} finally {
+			if (data != null) {
+				data.limit(dataLimit);
+			}
+			if (spare != null) {
+				spare.limit(spareLimit);
+			}
+		}
+		return count;
+	}
+}
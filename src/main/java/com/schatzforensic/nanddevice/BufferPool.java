@@ -0,0 +1,147 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.nanddevice;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of page buffers and raster arrays, so a long run reuses the same few large buffers rather than allocating
+ * them for every image and leaving them to the garbage collector.
+ * <p>
+ * Buffers are pooled by exact size, which suits the plotter, whose buffers come in a handful of sizes fixed by the
+ * geometry and tiling. Every buffer acquired should be released once it is no longer used; one which is not is simply
+ * garbage collected. Released buffers are kept until the pool holds its maximum number of bytes, after which they are
+ * dropped. The pool is thread safe.
+ */
+public class BufferPool {
+
+	/**
+	 * The number of bytes the shared pool keeps.
+	 */
+	public static final long DEFAULT_MAX_RETAINED = 512L * 1024 * 1024;
+
+	/**
+	 * The pool shared by the plotter, the relocation scanner and the views.
+	 */
+	public static final BufferPool SHARED = new BufferPool(DEFAULT_MAX_RETAINED);
+
+	private final long maxRetained;
+	private final Map<Integer, ArrayDeque<byte[]>> arrays = new HashMap<Integer, ArrayDeque<byte[]>>();
+	private long retained;
+	private long allocations;
+
+	/**
+	 * Create a pool.
+	 *
+	 * @param maxRetained The most bytes of released buffers to keep.
+	 */
+	public BufferPool(long maxRetained) {
+		this.maxRetained = maxRetained;
+	}
+
+	/**
+	 * Acquire an array, filled with zeros.
+	 *
+	 * @param length The length of the array.
+	 * @return The array.
+	 */
+	public byte[] acquireArray(int length) {
+		byte[] array = take(length);
+		if (array == null) {
+			return new byte[length];
+		}
+		Arrays.fill(array, (byte) 0);
+		return array;
+	}
+
+	/**
+	 * Acquire a heap buffer, cleared for reading into. Its contents are left over from its last use.
+	 *
+	 * @param capacity The capacity of the buffer.
+	 * @return The buffer, backed by an array of exactly its capacity.
+	 */
+	public ByteBuffer acquire(int capacity) {
+		byte[] array = take(capacity);
+		return ByteBuffer.wrap(array == null ? new byte[capacity] : array);
+	}
+
+	/**
+	 * Return an array to the pool. It must not be used afterwards.
+	 *
+	 * @param array The array, or null.
+	 */
+	public synchronized void release(byte[] array) {
+		if (array == null || retained + array.length > maxRetained) {
+			return;
+		}
+		ArrayDeque<byte[]> free = arrays.get(array.length);
+		if (free == null) {
+			free = new ArrayDeque<byte[]>();
+			arrays.put(array.length, free);
+		}
+		free.push(array);
+		retained += array.length;
+	}
+
+	/**
+	 * Return a buffer acquired from the pool. It, and any slices of it, must not be used afterwards.
+	 *
+	 * @param buf The buffer, or null.
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf == null) {
+			return;
+		}
+		if (buf.hasArray() && buf.arrayOffset() == 0 && buf.array().length == buf.capacity()) {
+			release(buf.array());
+		}
+	}
+
+	/**
+	 * Get the number of buffers the pool has had to allocate because none of the size asked for was free. Once a run
+	 * reaches a steady state this stops growing.
+	 *
+	 * @return The number of allocations.
+	 */
+	public synchronized long getAllocations() {
+		return allocations;
+	}
+
+	/**
+	 * Get the number of bytes held in released buffers.
+	 *
+	 * @return The bytes retained.
+	 */
+	public synchronized long getRetained() {
+		return retained;
+	}
+
+	private synchronized byte[] take(int length) {
+		ArrayDeque<byte[]> free = arrays.get(length);
+		if (free != null && !free.isEmpty()) {
+			retained -= length;
+			return free.pop();
+		}
+		allocations++;
+		return null;
+	}
+}
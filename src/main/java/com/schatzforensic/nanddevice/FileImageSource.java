@@ -0,0 +1,95 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.nanddevice;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An image held in a single raw file.
+ */
+public class FileImageSource extends ImageSource {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+
+	/**
+	 * Create a source reading a file.
+	 *
+	 * @param file The file to read. It is closed when the source is.
+	 * @throws IOException
+	 */
+	public FileImageSource(RandomAccessFile file) throws IOException {
+		this.file = file;
+		this.channel = file.getChannel();
+		this.size = file.length();
+	}
+
+	/**
+	 * Get the file read, so it can be memory mapped.
+	 *
+	 * @return The file.
+	 */
+	public RandomAccessFile getFile() {
+		return file;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.ImageSource#read(java.nio.ByteBuffer, long)
+	 */
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (position >= size) {
+			return -1;
+		}
+		int total = 0;
+		while (dst.hasRemaining()) {
+			int read = channel.read(dst, position + total);
+			if (read < 0) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.ImageSource#size()
+	 */
+	@Override
+	public long size() {
+		return size;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,492 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.nanddevice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A gzip compressed image, read in place without decompressing it to disk.
+ * <p>
+ * A gzip file can only be decompressed from the start of one of its members, so on first open the whole file is
+ * decompressed once to find where each member starts, checking each member's CRC as it goes. The positions are cached
+ * beside the image in a .gzidx file, when it can be written, so later opens are immediate. Images compressed as many
+ * members, as bgzip writes them or as gzip files concatenated together, can then be read from near any position. An
+ * image compressed as a single member, or as members too large to seek within cheaply, is still readable, but a read
+ * before the furthest position reached restarts from the beginning of its member, so it is not seekable.
+ * <p>
+ * Reads are made by a few decompressing cursors, each reused for the next read at or after where it stopped, so the
+ * page data and spare areas of an image with spares at the end can both be read sequentially without restarting.
+ * Reads are serialised, so a compressed image gains nothing from being read by several threads.
+ * <p>
+ * The index file is big endian:
+ *
+ * <pre>
+ * header: magic "NANDGZX1" (8), image length (8), image modification time (8), uncompressed size (8), members (4)
+ * member: compressed offset (8), uncompressed offset (8)
+ * </pre>
+ */
+public class GzipImageSource extends ImageSource {
+
+	private static final byte[] MAGIC = "NANDGZX1".getBytes(Charset.forName("US-ASCII"));
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_CURSORS = 4;
+	private static final long MAX_SEEKABLE_MEMBER = 16L * 1024 * 1024;
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final File file;
+	private final long size;
+	private final long[] compressedStarts;
+	private final long[] uncompressedStarts;
+
+	private final List<Cursor> cursors = new ArrayList<Cursor>();
+	private final byte[] scratch = new byte[BUFFER_SIZE];
+	private long uses;
+
+	/**
+	 * Open a gzip compressed image, reading its member index, or building it if there is none or the image has
+	 * changed since it was written.
+	 *
+	 * @param file The compressed image.
+	 * @throws IOException If the image could not be read, or is not a valid gzip file.
+	 */
+	public GzipImageSource(File file) throws IOException {
+		this.file = file;
+		long length = file.length();
+		long modified = file.lastModified();
+		File indexFile = getIndexFile(file);
+
+		List<long[]> members = readIndex(indexFile, length, modified);
+		if (members == null) {
+			members = scan(file);
+			try {
+				writeIndex(indexFile, length, modified, members);
+			} catch (IOException e) {
+				// The evidence may be read only, so the index is rebuilt next time.
+				indexFile.delete();
+			}
+		}
+
+		this.size = members.get(members.size() - 1)[1];
+		this.compressedStarts = new long[members.size() - 1];
+		this.uncompressedStarts = new long[members.size() - 1];
+		for (int i = 0; i < compressedStarts.length; i++) {
+			compressedStarts[i] = members.get(i)[0];
+			uncompressedStarts[i] = members.get(i)[1];
+		}
+	}
+
+	/**
+	 * Get the member index file for a compressed image: the image name followed by .gzidx.
+	 *
+	 * @param image The compressed image.
+	 * @return The index file.
+	 */
+	public static File getIndexFile(File image) {
+		return new File(image.getAbsoluteFile().getParentFile(), image.getName() + ".gzidx");
+	}
+
+	/**
+	 * Get the number of gzip members in the image.
+	 *
+	 * @return The number of members.
+	 */
+	public int getMemberCount() {
+		return compressedStarts.length;
+	}
+
+	/**
+	 * Is every member small enough that restarting from its start, to read before where a cursor stopped, is cheap.
+	 *
+	 * @return True if no member decompresses to more than 16 MiB.
+	 */
+	@Override
+	public boolean isSeekable() {
+		for (int i = 0; i < uncompressedStarts.length; i++) {
+			long end = i + 1 < uncompressedStarts.length ? uncompressedStarts[i + 1] : size;
+			if (end - uncompressedStarts[i] > MAX_SEEKABLE_MEMBER) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.ImageSource#read(java.nio.ByteBuffer, long)
+	 */
+	@Override
+	public synchronized int read(ByteBuffer dst, long position) throws IOException {
+		if (position >= size) {
+			return -1;
+		}
+		Cursor cursor = seek(position);
+		int length = (int) Math.min(dst.remaining(), size - position);
+		int total = 0;
+		while (total < length) {
+			int read;
+			if (dst.hasArray()) {
+				read = cursor.in.read(dst.array(), dst.arrayOffset() + dst.position(), length - total);
+				if (read > 0) {
+					dst.position(dst.position() + read);
+				}
+			} else {
+				read = cursor.in.read(scratch, 0, Math.min(scratch.length, length - total));
+				if (read > 0) {
+					dst.put(scratch, 0, read);
+				}
+			}
+			if (read < 0) {
+				throw new IOException(file + " is shorter than its index records");
+			}
+			cursor.position += read;
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * Get a cursor at a position: the cursor needing to skip the least to reach it, or a cursor restarted from the
+	 * member holding the position if that would skip less.
+	 */
+	private Cursor seek(long position) throws IOException {
+		Cursor best = null;
+		for (Cursor c : cursors) {
+			if (c.position <= position && (best == null || c.position > best.position)) {
+				best = c;
+			}
+		}
+		int member = Arrays.binarySearch(uncompressedStarts, position);
+		if (member < 0) {
+			member = -member - 2;
+		}
+		if (best == null || uncompressedStarts[member] > best.position) {
+			if (cursors.size() < MAX_CURSORS) {
+				best = new Cursor();
+				cursors.add(best);
+			} else {
+				best = cursors.get(0);
+				for (Cursor c : cursors) {
+					if (c.lastUse < best.lastUse) {
+						best = c;
+					}
+				}
+			}
+			best.open(compressedStarts[member], uncompressedStarts[member]);
+		}
+		best.lastUse = ++uses;
+
+		while (best.position < position) {
+			int read = best.in.read(scratch, 0, (int) Math.min(scratch.length, position - best.position));
+			if (read < 0) {
+				throw new IOException(file + " is shorter than its index records");
+			}
+			best.position += read;
+		}
+		return best;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.ImageSource#size()
+	 */
+	@Override
+	public long size() {
+		return size;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		for (Cursor c : cursors) {
+			c.close();
+		}
+		cursors.clear();
+	}
+
+	/**
+	 * A decompressing stream part way through the image.
+	 */
+	private class Cursor {
+		private FileInputStream fis;
+		private InputStream in;
+		private long position;
+		private long lastUse;
+
+		private void open(long compressedOffset, long uncompressedOffset) throws IOException {
+			close();
+			fis = new FileInputStream(file);
+			fis.getChannel().position(compressedOffset);
+			in = new GZIPInputStream(fis, BUFFER_SIZE);
+			position = uncompressedOffset;
+		}
+
+		private void close() throws IOException {
+			if (fis != null) {
+				fis.close();
+				fis = null;
+				in = null;
+			}
+		}
+	}
+
+	/**
+	 * Read a cached member index.
+	 *
+	 * @return The start of each member followed by the end of the last, or null if there is no usable index.
+	 */
+	private static List<long[]> readIndex(File indexFile, long length, long modified) {
+		if (!indexFile.isFile()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				byte[] magic = new byte[MAGIC.length];
+				in.readFully(magic);
+				if (!Arrays.equals(magic, MAGIC) || in.readLong() != length || in.readLong() != modified) {
+					return null;
+				}
+				long uncompressed = in.readLong();
+				int count = in.readInt();
+				if (count < 1) {
+					return null;
+				}
+				List<long[]> members = new ArrayList<long[]>();
+				for (int i = 0; i < count; i++) {
+					members.add(new long[] { in.readLong(), in.readLong() });
+				}
+				members.add(new long[] { length, uncompressed });
+				return members;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static void writeIndex(File indexFile, long length, long modified, List<long[]> members)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+		try {
+			out.write(MAGIC);
+			out.writeLong(length);
+			out.writeLong(modified);
+			out.writeLong(members.get(members.size() - 1)[1]);
+			out.writeInt(members.size() - 1);
+			for (int i = 0; i < members.size() - 1; i++) {
+				out.writeLong(members.get(i)[0]);
+				out.writeLong(members.get(i)[1]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Decompress the whole image to find its members, checking the CRC and size recorded after each. Anything after
+	 * the last member which is not another member is ignored, as gunzip does.
+	 *
+	 * @return The start of each member followed by the end of the last.
+	 */
+	private static List<long[]> scan(File file) throws IOException {
+		List<long[]> members = new ArrayList<long[]>();
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			Input input = new Input(fis.getChannel());
+			Inflater inflater = new Inflater(true);
+			CRC32 crc = new CRC32();
+			byte[] out = new byte[BUFFER_SIZE];
+			long uncompressed = 0;
+			try {
+				while (true) {
+					long start = input.offset();
+					if (!input.readHeader(!members.isEmpty())) {
+						members.add(new long[] { start, uncompressed });
+						break;
+					}
+					members.add(new long[] { start, uncompressed });
+
+					inflater.reset();
+					crc.reset();
+					long memberSize = 0;
+					while (!inflater.finished()) {
+						if (inflater.needsInput()) {
+							input.feed(inflater);
+						}
+						int n;
+						try {
+							n = inflater.inflate(out);
+						} catch (DataFormatException e) {
+							throw new IOException(file + " is corrupt at member " + (members.size() - 1), e);
+						}
+						if (n == 0 && inflater.needsDictionary()) {
+							throw new IOException(file + " needs a preset dictionary at member " + (members.size() - 1));
+						}
+						crc.update(out, 0, n);
+						memberSize += n;
+					}
+					input.unread(inflater.getRemaining());
+
+					long expectedCrc = input.readIntLE();
+					long expectedSize = input.readIntLE();
+					if (expectedCrc != crc.getValue() || expectedSize != (memberSize & 0xffffffffL)) {
+						throw new IOException(file + " fails its CRC check at member " + (members.size() - 1));
+					}
+					uncompressed += memberSize;
+				}
+			} finally {
+				inflater.end();
+			}
+		} finally {
+			fis.close();
+		}
+		return members;
+	}
+
+	/**
+	 * Buffered reading of the compressed file which keeps track of the offset reached.
+	 */
+	private static class Input {
+		private final FileChannel channel;
+		private final byte[] buf = new byte[BUFFER_SIZE];
+		private long bufStart;
+		private int pos;
+		private int lim;
+
+		private Input(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		private long offset() {
+			return bufStart + pos;
+		}
+
+		private boolean fill() throws IOException {
+			bufStart += lim;
+			pos = 0;
+			lim = Math.max(0, channel.read(ByteBuffer.wrap(buf), bufStart));
+			return lim > 0;
+		}
+
+		private int read() throws IOException {
+			if (pos == lim && !fill()) {
+				throw new IOException("Unexpected end of compressed image");
+			}
+			return buf[pos++] & 0xff;
+		}
+
+		private long readIntLE() throws IOException {
+			return read() | (read() << 8) | (read() << 16) | ((long) read() << 24);
+		}
+
+		/**
+		 * Give the inflater the rest of the buffer.
+		 */
+		private void feed(Inflater inflater) throws IOException {
+			if (pos == lim && !fill()) {
+				throw new IOException("Unexpected end of compressed image");
+			}
+			inflater.setInput(buf, pos, lim - pos);
+			pos = lim;
+		}
+
+		/**
+		 * Step back over input the inflater was given but did not use.
+		 */
+		private void unread(int count) {
+			pos -= count;
+		}
+
+		/**
+		 * Read a member header.
+		 *
+		 * @param more True if a member has already been read, so the end of the file or something other than a
+		 *            member ends the image rather than being an error.
+		 * @return True if a header was read, false if the image has ended.
+		 */
+		private boolean readHeader(boolean more) throws IOException {
+			if (pos == lim && !fill()) {
+				if (more) {
+					return false;
+				}
+				throw new IOException("Empty compressed image");
+			}
+			if (read() != 0x1f || (pos == lim && !fill()) || read() != 0x8b) {
+				if (more) {
+					return false;
+				}
+				throw new IOException("Not in gzip format");
+			}
+			if (read() != 8) {
+				throw new IOException("Unsupported gzip compression method");
+			}
+			int flags = read();
+			for (int i = 0; i < 6; i++) {
+				read();
+			}
+			if ((flags & FEXTRA) != 0) {
+				int extra = read() | (read() << 8);
+				for (int i = 0; i < extra; i++) {
+					read();
+				}
+			}
+			if ((flags & FNAME) != 0) {
+				while (read() != 0) {
+				}
+			}
+			if ((flags & FCOMMENT) != 0) {
+				while (read() != 0) {
+				}
+			}
+			if ((flags & FHCRC) != 0) {
+				read();
+				read();
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.nanddevice;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The bytes of a NAND image, however they are stored as evidence: a single raw file, a raw image split into numbered
+ * segment files, or a gzip compressed image. Reads are positional, so one source may be read by several threads.
+ */
+public abstract class ImageSource implements Closeable {
+
+	/**
+	 * The first segment of a split image, such as image.001.
+	 */
+	private static final Pattern FIRST_SEGMENT = Pattern.compile("(.*\\.)(0*1)");
+
+	/**
+	 * Open an image, choosing how to read it from its name. A file named like image.001 is read along with the
+	 * following segments image.002, image.003 and so on, and a file ending in .gz is decompressed.
+	 *
+	 * @param file The image file, or the first segment of a split image.
+	 * @return The source.
+	 * @throws IOException If the image could not be opened.
+	 */
+	public static ImageSource open(File file) throws IOException {
+		String name = file.getName();
+		if (name.toLowerCase().endsWith(".gz")) {
+			return new GzipImageSource(file);
+		}
+		Matcher m = FIRST_SEGMENT.matcher(name);
+		if (m.matches()) {
+			return SplitImageSource.open(file, m.group(1), m.group(2).length());
+		}
+		return new FileImageSource(new RandomAccessFile(file, "r"));
+	}
+
+	/**
+	 * Get when an image was last modified, so files built from it can tell when they are out of date. For a split
+	 * image this is the latest of its segments.
+	 *
+	 * @param file The image file, or the first segment of a split image.
+	 * @return The time in milliseconds since the epoch, or 0 if the image does not exist.
+	 */
+	public static long lastModified(File file) {
+		String name = file.getName();
+		Matcher m = FIRST_SEGMENT.matcher(name);
+		if (!name.toLowerCase().endsWith(".gz") && m.matches()) {
+			long modified = 0;
+			for (File segment : SplitImageSource.segments(file, m.group(1), m.group(2).length())) {
+				modified = Math.max(modified, segment.lastModified());
+			}
+			return modified;
+		}
+		return file.lastModified();
+	}
+
+	/**
+	 * Read bytes from a position in the image into a buffer. Unlike FileChannel, the buffer is filled unless the end
+	 * of the image is reached first.
+	 *
+	 * @param dst The buffer to read into.
+	 * @param position The position in the image of the first byte.
+	 * @return The number of bytes read, or -1 if the position is at or beyond the end of the image.
+	 * @throws IOException
+	 */
+	public abstract int read(ByteBuffer dst, long position) throws IOException;
+
+	/**
+	 * Get the size of the image.
+	 *
+	 * @return The size in bytes, uncompressed.
+	 */
+	public abstract long size();
+
+	/**
+	 * Can the image be read at any position about as cheaply as in order. An image which cannot should be read from
+	 * start to end by one reader, not by several threads each reading their own part.
+	 *
+	 * @return True unless reading out of order is costly.
+	 */
+	public boolean isSeekable() {
+		return true;
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.nanddevice;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A nand device which memory maps the underlying image rather than reading it through the channel. Both the inband
+ * (page spare page spare...) and end (page page spare spare...) layouts are supported. The image is mapped in windows
+ * so that images larger than 2GB can be read. Readers which can work on a buffer in place, as the plotter and the
+ * relocation scan do, take page and spare slices rather than copying the pages with readPages.
+ */
+public class MappedNandDevice extends AbstractNandDevice {
+
+	/**
+	 * The default size of each mapped window.
+	 */
+	public static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+	/**
+	 * The default number of windows kept mapped at once.
+	 */
+	public static final int DEFAULT_MAX_WINDOWS = 16;
+
+	private final FileChannel bs;
+	private final int pageSize;
+	private final int spareSize;
+	private final int blockSize;
+	private final boolean spareNotInBand;
+	private final long endPage;
+	/**
+	 * Whole chunks for the inband layout, or the page data for the end layout.
+	 */
+	private final MappedRegion pages;
+	/**
+	 * The spares for the end layout, null for the inband layout.
+	 */
+	private final MappedRegion spares;
+
+	/**
+	 * Create a memory mapped NAND device.
+	 *
+	 * @param pageSize The page size
+	 * @param spareSize The spare size
+	 * @param blockSize The block size
+	 * @param stream The file to read from
+	 * @param spareNotInBand True if the spares are stored at the end of the image, false if they follow each page.
+	 * @throws IOException
+	 */
+	public MappedNandDevice(int pageSize, int spareSize, int blockSize, RandomAccessFile stream,
+			boolean spareNotInBand) throws IOException {
+		this(pageSize, spareSize, blockSize, stream, spareNotInBand, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_WINDOWS);
+	}
+
+	/**
+	 * Create a memory mapped NAND device.
+	 *
+	 * @param pageSize The page size
+	 * @param spareSize The spare size
+	 * @param blockSize The block size
+	 * @param stream The file to read from
+	 * @param spareNotInBand True if the spares are stored at the end of the image, false if they follow each page.
+	 * @param windowSize The approximate size of each mapped window in bytes.
+	 * @param maxWindows The maximum number of windows to keep mapped at once.
+	 * @throws IOException
+	 */
+	public MappedNandDevice(int pageSize, int spareSize, int blockSize, RandomAccessFile stream,
+			boolean spareNotInBand, long windowSize, int maxWindows) throws IOException {
+		this.pageSize = pageSize;
+		this.spareSize = spareSize;
+		this.blockSize = blockSize;
+		this.spareNotInBand = spareNotInBand;
+		bs = stream.getChannel();
+		endPage = stream.length() / (pageSize + spareSize);
+
+		if (spareNotInBand) {
+			pages = new MappedRegion(bs, 0, pageSize, endPage, windowSize, maxWindows);
+			spares = new MappedRegion(bs, endPage * pageSize, spareSize, endPage, windowSize, maxWindows);
+		} else {
+			pages = new MappedRegion(bs, 0, pageSize + spareSize, endPage, windowSize, maxWindows);
+			spares = null;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.evimetry.byteplotter.NANDDevice#getSize()
+	 */
+	@Override
+	public long getSize() throws IOException {
+		return endPage;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.evimetry.byteplotter.NANDDevice#getBlockSize()
+	 */
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.evimetry.byteplotter.NANDDevice#getSpareSize()
+	 */
+	@Override
+	public int getSpareSize() {
+		return spareSize;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.evimetry.byteplotter.NANDDevice#getPageDataSize()
+	 */
+	@Override
+	public int getPageDataSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Get a read only view of the page data of a chunk. No data is copied.
+	 *
+	 * @param chunk The chunk to view
+	 * @return A buffer positioned at the start of the page data.
+	 * @throws IOException If the chunk could not be mapped.
+	 */
+	public ByteBuffer getPageSlice(long chunk) throws IOException {
+		checkChunk(chunk);
+		return pages.slice(chunk, 0, pageSize);
+	}
+
+	/**
+	 * Get a read only view of the spare of a chunk. No data is copied.
+	 *
+	 * @param chunk The chunk to view
+	 * @return A buffer positioned at the start of the spare.
+	 * @throws IOException If the chunk could not be mapped.
+	 */
+	public ByteBuffer getSpareSlice(long chunk) throws IOException {
+		checkChunk(chunk);
+		if (spareNotInBand) {
+			return spares.slice(chunk, 0, spareSize);
+		}
+		return pages.slice(chunk, pageSize, spareSize);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.evimetry.byteplotter.NANDDevice#readPage(long, java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void readPage(long chunk, ByteBuffer data, ByteBuffer spare) throws IOException {
+		if (data != null) {
+			if (data.remaining() != pageSize) {
+				throw new IllegalArgumentException();
+			}
+			data.put(getPageSlice(chunk));
+		}
+		if (spare != null) {
+			if (spare.remaining() != spareSize) {
+				throw new IllegalArgumentException();
+			}
+			spare.put(getSpareSlice(chunk));
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.NANDDevice#readPages(long, int, java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void readPages(long firstChunk, int count, ByteBuffer data, ByteBuffer spare) throws IOException {
+		if (data != null && data.remaining() != count * pageSize) {
+			throw new IllegalArgumentException();
+		}
+		if (spare != null && spare.remaining() != count * spareSize) {
+			throw new IllegalArgumentException();
+		}
+		for (long chunk = firstChunk; chunk < firstChunk + count; chunk++) {
+			if (data != null) {
+				data.put(getPageSlice(chunk));
+			}
+			if (spare != null) {
+				spare.put(getSpareSlice(chunk));
+			}
+		}
+	}
+
+	private void checkChunk(long chunk) throws IOException {
+		if (chunk < 0 || chunk >= endPage) {
+			throw new IOException("Page read beyond end of device");
+		}
+	}
+}
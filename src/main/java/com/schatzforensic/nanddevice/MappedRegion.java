@@ -0,0 +1,121 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.nanddevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A run of fixed size records in a file, mapped into memory a window at a time. Windows always hold a whole number of
+ * records so a record never straddles two mappings. Only the most recently used windows are kept; older mappings are
+ * released to the garbage collector.
+ */
+class MappedRegion {
+
+	private final FileChannel channel;
+	private final long base;
+	private final int recordSize;
+	private final long records;
+	private final long recordsPerWindow;
+	private final Map<Long, MappedByteBuffer> windows;
+
+	/**
+	 * Create a mapped region.
+	 *
+	 * @param channel The channel to map.
+	 * @param base The offset of the first record in the file.
+	 * @param recordSize The size of each record.
+	 * @param records The number of records in the region.
+	 * @param windowSize The approximate size of each window.
+	 * @param maxWindows The maximum number of windows to keep mapped.
+	 */
+	MappedRegion(FileChannel channel, long base, int recordSize, long records, long windowSize, final int maxWindows) {
+		if (windowSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Window size must be less than 2GB");
+		}
+		this.channel = channel;
+		this.base = base;
+		this.recordSize = recordSize;
+		this.records = records;
+		this.recordsPerWindow = Math.max(1, windowSize / recordSize);
+		this.windows = new LinkedHashMap<Long, MappedByteBuffer>(maxWindows, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+				return size() > maxWindows;
+			}
+		};
+	}
+
+	/**
+	 * Get a read only view of part of a record.
+	 *
+	 * @param record The record number.
+	 * @param offset The offset within the record.
+	 * @param length The number of bytes to view.
+	 * @return A buffer over the requested bytes.
+	 * @throws IOException If the window could not be mapped.
+	 */
+	ByteBuffer slice(long record, int offset, int length) throws IOException {
+		long window = record / recordsPerWindow;
+		int start = (int) ((record - window * recordsPerWindow) * recordSize) + offset;
+		ByteBuffer view = getWindow(window).duplicate();
+		view.limit(start + length);
+		view.position(start);
+		return view.slice();
+	}
+
+	/**
+	 * Get the window holding a record. The window is shared, so it must only be read with absolute gets, at
+	 * offsetOf(record) onwards.
+	 *
+	 * @param record The record number.
+	 * @return The window's buffer.
+	 * @throws IOException If the window could not be mapped.
+	 */
+	ByteBuffer windowOf(long record) throws IOException {
+		return getWindow(record / recordsPerWindow);
+	}
+
+	/**
+	 * Get the offset of a record in its window.
+	 *
+	 * @param record The record number.
+	 * @return The offset of the record in the buffer returned by windowOf.
+	 */
+	int offsetOf(long record) {
+		return (int) ((record % recordsPerWindow) * recordSize);
+	}
+
+	private synchronized MappedByteBuffer getWindow(long window) throws IOException {
+		MappedByteBuffer mapped = windows.get(window);
+		if (mapped == null) {
+			long first = window * recordsPerWindow;
+			long count = Math.min(recordsPerWindow, records - first);
+			mapped = channel.map(MapMode.READ_ONLY, base + first * recordSize, count * recordSize);
+			windows.put(window, mapped);
+		}
+		return mapped;
+	}
+}
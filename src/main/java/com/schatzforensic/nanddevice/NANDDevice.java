@@ -21,7 +21,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
- * Interface for NAND Devices.
+ * Interface for NAND Devices. Implementations must be safe to read from several threads at once.
  */
 public interface NANDDevice {
 	/**
@@ -34,6 +34,18 @@ public interface NANDDevice {
 	 */
 	public void readPage(long chunk, ByteBuffer data, ByteBuffer spare) throws IOException;
 
+	/**
+	 * Read a contiguous run of pages from the NAND Device. The page data of each page is written to the data buffer
+	 * one after another, and likewise the spares to the spare buffer.
+	 * 
+	 * @param firstChunk The first chunk to read
+	 * @param count The number of chunks to read
+	 * @param data The buffer for the data, or null if the data is not required
+	 * @param spare The buffer for the spares, or null if the spares are not required
+	 * @throws IOException If reading the information failed, or the run extends beyond the end of the device.
+	 */
+	public void readPages(long firstChunk, int count, ByteBuffer data, ByteBuffer spare) throws IOException;
+
 	/**
 	 * Get the Page Data Size.
 	 * 
@@ -49,18 +61,39 @@ public interface NANDDevice {
 	public int getSpareSize();
 
 	/**
-	 * Get the size of the NAND device in blocks.
+	 * Get the size of the NAND device in chunks.
 	 * 
-	 * @return The size of the NAND in blocks.
+	 * @return The size of the NAND in chunks.
 	 * @throws IOException
 	 */
 	public long getSize() throws IOException;
 
 	/**
-	 * Get the block size.
+	 * Get the block size: the number of pages in each erase block.
 	 * 
-	 * @return The size of the blocks.
+	 * @return The pages per block.
 	 */
 	public int getBlockSize();
 
+	/**
+	 * Get the number of erase blocks. The last block is partial if the size of the device is not a multiple of the
+	 * block size.
+	 * 
+	 * @return The number of blocks.
+	 * @throws IOException
+	 */
+	public long getBlockCount() throws IOException;
+
+	/**
+	 * Read every page of an erase block, in as few reads of the image as its layout allows. The page data of each page
+	 * is written to the data buffer one after another, and likewise the spares to the spare buffer.
+	 * 
+	 * @param block The block to read
+	 * @param data The buffer for the data, with room for a whole block, or null if the data is not required
+	 * @param spare The buffer for the spares, with room for a whole block, or null if the spares are not required
+	 * @return The number of pages read, less than the block size only for a partial last block.
+	 * @throws IOException If reading the information failed, or the block is beyond the end of the device.
+	 */
+	public int readBlock(long block, ByteBuffer data, ByteBuffer spare) throws IOException;
+
 }
@@ -0,0 +1,104 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.nanddevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Iterates over the erase blocks of a NAND device in order, reading each with readBlock into buffers reused from one
+ * block to the next.
+ */
+public class NandBlocks {
+
+	private NandBlocks() {
+	}
+
+	/**
+	 * Read a range of blocks, passing each to a visitor.
+	 *
+	 * @param device The device to read.
+	 * @param firstBlock The first block.
+	 * @param count The number of blocks.
+	 * @param readData True to read the page data.
+	 * @param readSpare True to read the spares.
+	 * @param visitor Given each block in turn.
+	 * @throws IOException If reading failed, or the visitor failed.
+	 */
+	public static void scan(NANDDevice device, long firstBlock, long count, boolean readData, boolean readSpare,
+			Visitor visitor) throws IOException {
+		int pagesPerBlock = device.getBlockSize();
+		ByteBuffer data = readData ? BufferPool.SHARED.acquire(pagesPerBlock * device.getPageDataSize()) : null;
+		ByteBuffer spare = readSpare ? BufferPool.SHARED.acquire(pagesPerBlock * device.getSpareSize()) : null;
+		try {
+			for (long block = firstBlock; block < firstBlock + count; block++) {
+				if (data != null) {
+					data.clear();
+				}
+				if (spare != null) {
+					spare.clear();
+				}
+				int pages = device.readBlock(block, data, spare);
+				if (data != null) {
+					data.flip();
+				}
+				if (spare != null) {
+					spare.flip();
+				}
+				visitor.block(block, pages, data, spare);
+			}
+		} finally {
+			if (data != null) {
+				BufferPool.SHARED.release(data);
+			}
+			if (spare != null) {
+				BufferPool.SHARED.release(spare);
+			}
+		}
+	}
+
+	/**
+	 * Read every block of a device, passing each to a visitor.
+	 *
+	 * @param device The device to read.
+	 * @param readData True to read the page data.
+	 * @param readSpare True to read the spares.
+	 * @param visitor Given each block in turn.
+	 * @throws IOException If reading failed, or the visitor failed.
+	 */
+	public static void scan(NANDDevice device, boolean readData, boolean readSpare, Visitor visitor)
+			throws IOException {
+		scan(device, 0, device.getBlockCount(), readData, readSpare, visitor);
+	}
+
+	/**
+	 * Receives the blocks read by a scan.
+	 */
+	public interface Visitor {
+		/**
+		 * A block was read. The buffers are reused for the next block once this returns.
+		 *
+		 * @param block The block.
+		 * @param pages The number of pages in the block.
+		 * @param data The page data of each page one after another, or null if the data was not read.
+		 * @param spare The spares of each page one after another, or null if the spares were not read.
+		 * @throws IOException
+		 */
+		public void block(long block, int pages, ByteBuffer data, ByteBuffer spare) throws IOException;
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.nanddevice;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The page geometry of a NAND image: the page data size, the spare size, and whether the spares follow each page
+ * (inband) or are stored together at the end of the image.
+ */
+public class NandGeometry {
+
+	/**
+	 * The number of pages in each erase block when it is not known.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 64;
+
+	private final int pageSize;
+	private final int spareSize;
+	private final boolean spareNotInBand;
+
+	/**
+	 * Create a page geometry.
+	 *
+	 * @param pageSize The page data size
+	 * @param spareSize The spare size
+	 * @param spareNotInBand True if the spares are stored at the end of the image, false if they follow each page.
+	 */
+	public NandGeometry(int pageSize, int spareSize, boolean spareNotInBand) {
+		if (pageSize < 1 || spareSize < 0) {
+			throw new IllegalArgumentException("Invalid page geometry");
+		}
+		this.pageSize = pageSize;
+		this.spareSize = spareSize;
+		this.spareNotInBand = spareNotInBand;
+	}
+
+	/**
+	 * Parse a geometry of the form USERDATA:SPARE[:inband|end]. The spares are at the end if no layout is given.
+	 *
+	 * @param spec The geometry specification.
+	 * @return The geometry.
+	 * @throws IllegalArgumentException If the specification is not valid.
+	 */
+	public static NandGeometry parse(String spec) {
+		String[] parts = spec.trim().split(":");
+		if (parts.length < 2 || parts.length > 3) {
+			throw new IllegalArgumentException("Invalid page geometry: " + spec);
+		}
+		boolean spareNotInBand = true;
+		if (parts.length == 3) {
+			if (parts[2].equals("inband")) {
+				spareNotInBand = false;
+			} else if (!parts[2].equals("end")) {
+				throw new IllegalArgumentException("Invalid spare location: " + parts[2]);
+			}
+		}
+		return new NandGeometry(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), spareNotInBand);
+	}
+
+	/**
+	 * Open a NAND device with this geometry.
+	 *
+	 * @param stream The file to read from
+	 * @param blockSize The number of pages in each erase block
+	 * @return The NAND device.
+	 * @throws IOException
+	 */
+	public NANDDevice open(RandomAccessFile stream, int blockSize) throws IOException {
+		if (spareNotInBand) {
+			return new NandOOBandDevice(pageSize, spareSize, blockSize, stream);
+		}
+		return new NandInBandDevice(pageSize, spareSize, blockSize, stream);
+	}
+
+	/**
+	 * Open a NAND device with this geometry on an image however it is stored.
+	 *
+	 * @param source The image to read from
+	 * @param blockSize The number of pages in each erase block
+	 * @return The NAND device.
+	 * @throws IOException
+	 */
+	public NANDDevice open(ImageSource source, int blockSize) throws IOException {
+		if (spareNotInBand) {
+			return new NandOOBandDevice(pageSize, spareSize, blockSize, source);
+		}
+		return new NandInBandDevice(pageSize, spareSize, blockSize, source);
+	}
+
+	/**
+	 * Open a memory mapped NAND device with this geometry, whose pages can be viewed in place without being copied.
+	 *
+	 * @param source The image to map
+	 * @param blockSize The number of pages in each erase block
+	 * @return The NAND device.
+	 * @throws IOException If the image is not a single uncompressed file, or could not be mapped.
+	 */
+	public MappedNandDevice openMapped(ImageSource source, int blockSize) throws IOException {
+		if (!(source instanceof FileImageSource)) {
+			throw new IOException("Only an uncompressed image in a single file can be memory mapped");
+		}
+		return new MappedNandDevice(pageSize, spareSize, blockSize, ((FileImageSource) source).getFile(),
+				spareNotInBand);
+	}
+
+	/**
+	 * Get the Page Data Size.
+	 *
+	 * @return The page data size.
+	 */
+	public int getPageDataSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Get the Spare Size.
+	 *
+	 * @return The size of the spare.
+	 */
+	public int getSpareSize() {
+		return spareSize;
+	}
+
+	/**
+	 * Get the size of a page and its spare.
+	 *
+	 * @return The chunk size.
+	 */
+	public int getChunkSize() {
+		return pageSize + spareSize;
+	}
+
+	/**
+	 * Are the spares stored at the end of the image.
+	 *
+	 * @return True if the spares are at the end, false if they follow each page.
+	 */
+	public boolean isSpareNotInBand() {
+		return spareNotInBand;
+	}
+
+	/**
+	 * Get the name of the spare location, as used on the command line.
+	 *
+	 * @return "end" or "inband".
+	 */
+	public String getSpareLocation() {
+		return spareNotInBand ? "end" : "inband";
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d:%d:%s", pageSize, spareSize, getSpareLocation());
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof NandGeometry)) {
+			return false;
+		}
+		NandGeometry g = (NandGeometry) o;
+		return pageSize == g.pageSize && spareSize == g.spareSize && spareNotInBand == g.spareNotInBand;
+	}
+
+	@Override
+	public int hashCode() {
+		return (pageSize * 31 + spareSize) * 2 + (spareNotInBand ? 1 : 0);
+	}
+}
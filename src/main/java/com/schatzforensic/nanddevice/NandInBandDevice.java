@@ -20,17 +20,20 @@ package com.schatzforensic.nanddevice;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 /**
  * A nand device assumes that that underlying stream contains an image which is laid out page spare page spare...
  */
-public class NandInBandDevice implements NANDDevice {
+public class NandInBandDevice extends AbstractNandDevice {
 
-	private final FileChannel bs;
+	private final ImageSource bs;
 	private final int pageSize;
 	private final int spareSize;
 	private final int blockSize;
+	/**
+	 * Per thread buffer for reading runs of interleaved pages and spares.
+	 */
+	private final ThreadLocal<ByteBuffer> runBuffer = new ThreadLocal<ByteBuffer>();
 
 	/**
 	 * Create a NAND device.
@@ -43,9 +46,22 @@ public class NandInBandDevice implements NANDDevice {
 	 */
 	public NandInBandDevice(int pageSize, int spareSize, int blockSize, RandomAccessFile stream)
 			throws IOException {
+		this(pageSize, spareSize, blockSize, new FileImageSource(stream));
+	}
+
+	/**
+	 * Create a NAND device reading an image however it is stored.
+	 * 
+	 * @param pageSize The page size
+	 * @param spareSize The spare size
+	 * @param blockSize The block size
+	 * @param source The image to read from.
+	 * @throws IOException
+	 */
+	public NandInBandDevice(int pageSize, int spareSize, int blockSize, ImageSource source) throws IOException {
 		this.pageSize = pageSize;
 		this.spareSize = spareSize;
-		bs = stream.getChannel();
+		bs = source;
 		this.blockSize = blockSize;
 	}
 
@@ -103,8 +119,7 @@ public class NandInBandDevice implements NANDDevice {
 				throw new IllegalArgumentException();
 			}
 			pos = chunk * (pageSize + spareSize);
-			bs.position(pos);
-			bs.read(data);
+			bs.read(data, pos);
 		}
 
 		if (spare != null) {
@@ -112,8 +127,62 @@ public class NandInBandDevice implements NANDDevice {
 				throw new IllegalArgumentException();
 			}
 			pos = (chunk * (pageSize + spareSize)) + pageSize;
-			bs.position(pos);
-			bs.read(spare);
+			bs.read(spare, pos);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.schatzforensic.nanddevice.NANDDevice#readPages(long, int, java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void readPages(long firstChunk, int count, ByteBuffer data, ByteBuffer spare) throws IOException {
+		if (data != null && data.remaining() != count * pageSize) {
+			throw new IllegalArgumentException();
+		}
+		if (spare != null && spare.remaining() != count * spareSize) {
+			throw new IllegalArgumentException();
+		}
+		if (data == null && spare == null) {
+			return;
+		}
+
+		// The pages and spares are interleaved, so read the whole run at once and split it.
+		int chunkSize = pageSize + spareSize;
+		ByteBuffer run = getRunBuffer(count * chunkSize);
+		long pos = firstChunk * chunkSize;
+		while (run.hasRemaining()) {
+			int read = bs.read(run, pos);
+			if (read < 0) {
+				throw new IOException("Page read returned wrong size page");
+			}
+			pos += read;
+		}
+
+		for (int i = 0; i < count; i++) {
+			int start = i * chunkSize;
+			if (data != null) {
+				run.limit(start + pageSize);
+				run.position(start);
+				data.put(run);
+			}
+			if (spare != null) {
+				run.limit(start + chunkSize);
+				run.position(start + pageSize);
+				spare.put(run);
+			}
+		}
+	}
+
+	private ByteBuffer getRunBuffer(int size) {
+		ByteBuffer run = runBuffer.get();
+		if (run == null || run.capacity() < size) {
+			run = ByteBuffer.allocate(size);
+			runBuffer.set(run);
 		}
+		run.clear();
+		run.limit(size);
+		return run;
 	}
 }
@@ -20,14 +20,13 @@ package com.schatzforensic.nanddevice;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 /**
  * A nand device assumes that that underlying stream contains an image which is laid out page page spare spare...
  */
-public class NandOOBandDevice implements NANDDevice {
+public class NandOOBandDevice extends AbstractNandDevice {
 
-	private final FileChannel bs;
+	private final ImageSource bs;
 	private final int pageSize;
 	private final int spareSize;
 	private final int blockSize;
@@ -44,11 +43,24 @@ public class NandOOBandDevice implements NANDDevice {
 	 * @throws IOException
 	 */
 	public NandOOBandDevice(int pageSize, int spareSize, int blockSize, RandomAccessFile stream) throws IOException {
+		this(pageSize, spareSize, blockSize, new FileImageSource(stream));
+	}
+
+	/**
+	 * Create a NAND device reading an image however it is stored.
+	 * 
+	 * @param pageSize The page size
+	 * @param spareSize The spare size
+	 * @param blockSize The block size
+	 * @param source The image to read from.
+	 * @throws IOException
+	 */
+	public NandOOBandDevice(int pageSize, int spareSize, int blockSize, ImageSource source) throws IOException {
 		this.pageSize = pageSize;
 		this.spareSize = spareSize;
-		bs = stream.getChannel();
+		bs = source;
 		this.blockSize = blockSize;
-		endPage = stream.length() / (pageSize + spareSize);
+		endPage = source.size() / (pageSize + spareSize);
 		oobOffset = endPage * pageSize;
 	}
 
@@ -105,8 +117,7 @@ public class NandOOBandDevice implements NANDDevice {
 				throw new IllegalArgumentException();
 			}
 			pos = chunk * (pageSize);
-			bs.position(pos);
-			int read = bs.read(data);
+			int read = bs.read(data, pos);
 			if (read != pageSize)
 				throw new IOException("Page read returned wrong size page");
 		}
@@ -115,10 +126,43 @@ public class NandOOBandDevice implements NANDDevice {
 				throw new IllegalArgumentException();
 			}
 			pos = oobOffset + chunk * spareSize;
-			bs.position(pos);
-			int read = bs.read(spare);
+			int read = bs.read(spare, pos);
 			if (read != spareSize)
 				throw new IOException("Spare read returned wrong size spare");
 		}
 	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.schatzforensic.nanddevice.NANDDevice#readPages(long, int, java.nio.ByteBuffer, java.nio.ByteBuffer)
+	 */
+	@Override
+	public void readPages(long firstChunk, int count, ByteBuffer data, ByteBuffer spare) throws IOException {
+		if (firstChunk + count > endPage) {
+			throw new IOException("Page read beyond end of device");
+		}
+		if (data != null) {
+			if (data.remaining() != count * pageSize) {
+				throw new IllegalArgumentException();
+			}
+			readFully(data, firstChunk * pageSize);
+		}
+		if (spare != null) {
+			if (spare.remaining() != count * spareSize) {
+				throw new IllegalArgumentException();
+			}
+			readFully(spare, oobOffset + firstChunk * spareSize);
+		}
+	}
+
+	private void readFully(ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = bs.read(buf, pos);
+			if (read < 0) {
+				throw new IOException("Read beyond end of device");
+			}
+			pos += read;
+		}
+	}
 }
@@ -0,0 +1,77 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.nanddevice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Detects erased (all 0xFF) and zeroed page data and spares, comparing eight bytes at a time.
+ */
+public final class PageFill {
+
+	private PageFill() {
+	}
+
+	/**
+	 * Is a run of bytes all zeros or all 0xFF. An empty run counts as filled.
+	 *
+	 * @param buf The buffer holding the bytes. Its position is not changed.
+	 * @param offset The absolute offset of the first byte.
+	 * @param length The number of bytes.
+	 * @return True if every byte is zero, or every byte is 0xFF.
+	 */
+	public static boolean isFilled(ByteBuffer buf, int offset, int length) {
+		if (length == 0) {
+			return true;
+		}
+		byte first = buf.get(offset);
+		if (first != 0 && first != (byte) 0xff) {
+			return false;
+		}
+		long word = first == 0 ? 0L : -1L;
+		int end = offset + length;
+		int i = offset;
+		for (; i + 8 <= end; i += 8) {
+			if (buf.getLong(i) != word) {
+				return false;
+			}
+		}
+		for (; i < end; i++) {
+			if (buf.get(i) != first) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Is a chunk erased or zeroed: its page data and its spare each all zeros or all 0xFF.
+	 *
+	 * @param data The buffer holding the page data.
+	 * @param dataOffset The absolute offset of the page data.
+	 * @param pageSize The page data size.
+	 * @param spare The buffer holding the spare.
+	 * @param spareOffset The absolute offset of the spare.
+	 * @param spareSize The spare size.
+	 * @return True if the chunk is filled.
+	 */
+	public static boolean isFilled(ByteBuffer data, int dataOffset, int pageSize, ByteBuffer spare, int spareOffset,
+			int spareSize) {
+		return isFilled(data, dataOffset, pageSize) && isFilled(spare, spareOffset, spareSize);
+	}
+}
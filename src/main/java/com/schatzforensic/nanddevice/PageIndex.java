@@ -0,0 +1,375 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.nanddevice;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Per page statistics for a NAND image, stored in a sidecar file so they are computed once rather than on every pass
+ * over the image.
+ * <p>
+ * The file is a 48 byte header followed by a 16 byte record per chunk, all big endian, so the records can be memory
+ * mapped and read in place:
+ *
+ * <pre>
+ * header: magic "NANDIDX2" (8), page data size (4), spare size (4), spares at end (1), reserved (7), chunks (8),
+ *         image size (8), image modified (8)
+ * record: entropy (2), flags (1), reserved (1), spare hash (4), signature (8)
+ * </pre>
+ *
+ * The entropy is the Shannon entropy of the page data, scaled from 0 to 8 bits per byte onto 0 to 65535. The flags
+ * mark page data and spares filled with zeros or with 0xFF, as erased pages are. The spare hash is the 32 bit FNV-1a
+ * hash of the spare, and the signature is the first eight bytes of the page data. The image size and modification time
+ * are those of the image when it was indexed, so an index is not used for an image that has since changed.
+ */
+public class PageIndex {
+
+	/**
+	 * The page data is all zeros.
+	 */
+	public static final int DATA_ZERO = 1;
+
+	/**
+	 * The page data is all 0xFF.
+	 */
+	public static final int DATA_ERASED = 2;
+
+	/**
+	 * The spare is all zeros.
+	 */
+	public static final int SPARE_ZERO = 4;
+
+	/**
+	 * The spare is all 0xFF.
+	 */
+	public static final int SPARE_ERASED = 8;
+
+	private static final byte[] MAGIC = "NANDIDX2".getBytes(Charset.forName("US-ASCII"));
+	private static final int HEADER_SIZE = 48;
+	private static final int RECORD_SIZE = 16;
+	private static final int BATCH_PAGES = 256;
+	private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+	private static final int MAX_WINDOWS = 4;
+
+	private final RandomAccessFile file;
+	private final NandGeometry geometry;
+	private final long chunks;
+	private final MappedRegion records;
+
+	private PageIndex(RandomAccessFile file, NandGeometry geometry, long chunks) {
+		this.file = file;
+		this.geometry = geometry;
+		this.chunks = chunks;
+		this.records = new MappedRegion(file.getChannel(), HEADER_SIZE, RECORD_SIZE, chunks, WINDOW_SIZE,
+				MAX_WINDOWS);
+	}
+
+	/**
+	 * Get the sidecar file for an image and geometry: the image name followed by the geometry and .idx.
+	 *
+	 * @param image The image file.
+	 * @param geometry The geometry the index is for.
+	 * @return The index file.
+	 */
+	public static File getFile(File image, NandGeometry geometry) {
+		return new File(image.getAbsoluteFile().getParentFile(), String.format("%s-%d-%d-%s.idx", image.getName(),
+				geometry.getPageDataSize(), geometry.getSpareSize(), geometry.getSpareLocation()));
+	}
+
+	/**
+	 * Read every chunk of a device and write its index.
+	 *
+	 * @param device The device to index.
+	 * @param geometry The geometry of the device.
+	 * @param index The index file to write.
+	 * @param imageSize The size of the image in bytes.
+	 * @param imageModified When the image was last modified.
+	 * @throws IOException
+	 */
+	public static void build(NANDDevice device, NandGeometry geometry, File index, long imageSize, long imageModified)
+			throws IOException {
+		int pageSize = geometry.getPageDataSize();
+		int spareSize = geometry.getSpareSize();
+		long chunks = device.getSize();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(MAGIC);
+		header.putInt(pageSize);
+		header.putInt(spareSize);
+		header.put((byte) (geometry.isSpareNotInBand() ? 1 : 0));
+		header.position(header.position() + 7);
+		header.putLong(chunks);
+		header.putLong(imageSize);
+		header.putLong(imageModified);
+
+		double[] entropyTerms = new double[pageSize + 1];
+		for (int n = 1; n <= pageSize; n++) {
+			entropyTerms[n] = n * Math.log(n) / Math.log(2);
+		}
+		int[] histogram = new int[256];
+
+		ByteBuffer data = ByteBuffer.allocate(BATCH_PAGES * pageSize);
+		ByteBuffer spare = ByteBuffer.allocate(BATCH_PAGES * spareSize);
+		ByteBuffer batch = ByteBuffer.allocate(BATCH_PAGES * RECORD_SIZE);
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(index));
+		try {
+			os.write(header.array());
+			for (long chunk = 0; chunk < chunks; chunk += BATCH_PAGES) {
+				int count = (int) Math.min(BATCH_PAGES, chunks - chunk);
+				data.clear();
+				data.limit(count * pageSize);
+				spare.clear();
+				spare.limit(count * spareSize);
+				device.readPages(chunk, count, data, spare);
+
+				byte[] d = data.array();
+				byte[] s = spare.array();
+				batch.clear();
+				for (int p = 0; p < count; p++) {
+					Arrays.fill(histogram, 0);
+					int start = p * pageSize;
+					for (int i = start; i < start + pageSize; i++) {
+						histogram[d[i] & 0xff]++;
+					}
+					double sum = 0;
+					for (int n : histogram) {
+						sum += entropyTerms[n];
+					}
+					double entropy = Math.log(pageSize) / Math.log(2) - sum / pageSize;
+
+					int flags = 0;
+					if (histogram[0] == pageSize) {
+						flags |= DATA_ZERO;
+					}
+					if (histogram[0xff] == pageSize) {
+						flags |= DATA_ERASED;
+					}
+
+					int hash = 0x811c9dc5;
+					boolean spareZero = true;
+					boolean spareErased = true;
+					for (int i = p * spareSize; i < (p + 1) * spareSize; i++) {
+						hash = (hash ^ (s[i] & 0xff)) * 0x01000193;
+						spareZero &= s[i] == 0;
+						spareErased &= s[i] == (byte) 0xff;
+					}
+					if (spareZero) {
+						flags |= SPARE_ZERO;
+					}
+					if (spareErased) {
+						flags |= SPARE_ERASED;
+					}
+
+					batch.putShort((short) Math.round(Math.max(0, entropy) / 8 * 0xffff));
+					batch.put((byte) flags);
+					batch.put((byte) 0);
+					batch.putInt(hash);
+					for (int i = 0; i < 8; i++) {
+						batch.put(i < pageSize ? d[start + i] : 0);
+					}
+				}
+				os.write(batch.array(), 0, batch.position());
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Open an index, checking it was built for the expected geometry from the image as it is now.
+	 *
+	 * @param index The index file.
+	 * @param geometry The geometry of the image being read.
+	 * @param chunks The number of chunks in the image being read.
+	 * @param imageSize The size of the image being read in bytes.
+	 * @param imageModified When the image being read was last modified.
+	 * @return The index.
+	 * @throws IOException If the index could not be read, or does not match the image.
+	 */
+	public static PageIndex open(File index, NandGeometry geometry, long chunks, long imageSize, long imageModified)
+			throws IOException {
+		RandomAccessFile file = new RandomAccessFile(index, "r");
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			file.readFully(header.array());
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException(index + " is not a page index, or was written by an older version");
+			}
+			NandGeometry indexed = new NandGeometry(header.getInt(), header.getInt(), header.get() != 0);
+			header.position(header.position() + 7);
+			long indexedChunks = header.getLong();
+			if (!indexed.equals(geometry) || indexedChunks != chunks) {
+				throw new IOException(String.format("%s indexes %d chunks of %s, not %d chunks of %s", index,
+						indexedChunks, indexed, chunks, geometry));
+			}
+			if (header.getLong() != imageSize || header.getLong() != imageModified) {
+				throw new IOException(index + " was built before the image last changed");
+			}
+			if (file.length() < HEADER_SIZE + chunks * RECORD_SIZE) {
+				throw new IOException(index + " is truncated");
+			}
+			return new PageIndex(file, geometry, chunks);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Close the index file.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Get the geometry the index was built for.
+	 *
+	 * @return The geometry.
+	 */
+	public NandGeometry getGeometry() {
+		return geometry;
+	}
+
+	/**
+	 * Get the number of chunks indexed.
+	 *
+	 * @return The number of chunks.
+	 */
+	public long getSize() {
+		return chunks;
+	}
+
+	/**
+	 * Get the entropy of a chunk's page data.
+	 *
+	 * @param chunk The chunk.
+	 * @return The entropy, from 0 to 8 bits per byte.
+	 * @throws IOException
+	 */
+	public double getEntropy(long chunk) throws IOException {
+		return (records.windowOf(chunk).getShort(records.offsetOf(chunk)) & 0xffff) * 8.0 / 0xffff;
+	}
+
+	/**
+	 * Get the fill flags of a chunk.
+	 *
+	 * @param chunk The chunk.
+	 * @return DATA_ZERO, DATA_ERASED, SPARE_ZERO and SPARE_ERASED combined.
+	 * @throws IOException
+	 */
+	public int getFlags(long chunk) throws IOException {
+		return records.windowOf(chunk).get(records.offsetOf(chunk) + 2) & 0xff;
+	}
+
+	/**
+	 * Get the hash of a chunk's spare.
+	 *
+	 * @param chunk The chunk.
+	 * @return The FNV-1a hash of the spare.
+	 * @throws IOException
+	 */
+	public int getSpareHash(long chunk) throws IOException {
+		return records.windowOf(chunk).getInt(records.offsetOf(chunk) + 4);
+	}
+
+	/**
+	 * Get the signature of a chunk: the first eight bytes of its page data, big endian.
+	 *
+	 * @param chunk The chunk.
+	 * @return The signature.
+	 * @throws IOException
+	 */
+	public long getSignature(long chunk) throws IOException {
+		return records.windowOf(chunk).getLong(records.offsetOf(chunk) + 8);
+	}
+
+	/**
+	 * Are a chunk's page data and spare each filled with a single byte value, so they need not be read.
+	 *
+	 * @param chunk The chunk.
+	 * @return True if the chunk is filled.
+	 * @throws IOException
+	 */
+	public boolean isFilled(long chunk) throws IOException {
+		int flags = getFlags(chunk);
+		return (flags & (DATA_ZERO | DATA_ERASED)) != 0 && (flags & (SPARE_ZERO | SPARE_ERASED)) != 0;
+	}
+
+	/**
+	 * Find the next chunk whose page data is not filled with zeros or 0xFF.
+	 *
+	 * @param from The chunk to start looking from.
+	 * @return The next chunk holding data, or getSize() if there are none.
+	 * @throws IOException
+	 */
+	public long nextWithData(long from) throws IOException {
+		for (long chunk = from; chunk < chunks; chunk++) {
+			if ((getFlags(chunk) & (DATA_ZERO | DATA_ERASED)) == 0) {
+				return chunk;
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Fill the buffers with the contents of filled chunks, as reading them would.
+	 *
+	 * @param firstChunk The first chunk.
+	 * @param count The number of chunks, all of which must be filled.
+	 * @param data The buffer for the data, or null.
+	 * @param spare The buffer for the spares, or null.
+	 * @throws IOException
+	 */
+	public void fillPages(long firstChunk, int count, ByteBuffer data, ByteBuffer spare) throws IOException {
+		for (long chunk = firstChunk; chunk < firstChunk + count; chunk++) {
+			int flags = getFlags(chunk);
+			if (data != null) {
+				fill(data, geometry.getPageDataSize(), (flags & DATA_ZERO) != 0 ? 0 : (byte) 0xff);
+			}
+			if (spare != null) {
+				fill(spare, geometry.getSpareSize(), (flags & SPARE_ZERO) != 0 ? 0 : (byte) 0xff);
+			}
+		}
+	}
+
+	private static void fill(ByteBuffer buf, int length, byte value) {
+		if (buf.hasArray()) {
+			int start = buf.arrayOffset() + buf.position();
+			Arrays.fill(buf.array(), start, start + length, value);
+			buf.position(buf.position() + length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				buf.put(value);
+			}
+		}
+	}
+}
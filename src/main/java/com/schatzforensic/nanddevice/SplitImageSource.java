@@ -0,0 +1,177 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.nanddevice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A raw image split into numbered segment files, read as though they were concatenated. Segments may differ in size.
+ */
+public class SplitImageSource extends ImageSource {
+
+	private final RandomAccessFile[] segments;
+	/**
+	 * The position in the image of the start of each segment, followed by the size of the image.
+	 */
+	private final long[] starts;
+
+	/**
+	 * Create a source reading segments in order.
+	 *
+	 * @param files The segment files. They are closed when the source is.
+	 * @throws IOException
+	 */
+	public SplitImageSource(List<RandomAccessFile> files) throws IOException {
+		if (files.isEmpty()) {
+			throw new IllegalArgumentException("A split image needs at least one segment");
+		}
+		this.segments = files.toArray(new RandomAccessFile[files.size()]);
+		this.starts = new long[segments.length + 1];
+		for (int i = 0; i < segments.length; i++) {
+			starts[i + 1] = starts[i] + segments[i].length();
+		}
+	}
+
+	/**
+	 * Open the segments of a split image, from the first up to the first number with no file.
+	 *
+	 * @param first The first segment.
+	 * @param prefix The name of each segment before its number.
+	 * @param digits The number of digits in each segment number.
+	 * @return The source.
+	 * @throws IOException
+	 */
+	static SplitImageSource open(File first, String prefix, int digits) throws IOException {
+		List<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+		try {
+			for (File segment : segments(first, prefix, digits)) {
+				files.add(new RandomAccessFile(segment, "r"));
+			}
+			return new SplitImageSource(files);
+		} catch (IOException e) {
+			for (RandomAccessFile f : files) {
+				f.close();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * List the segments of a split image, from the first up to the first number with no file.
+	 *
+	 * @param first The first segment.
+	 * @param prefix The name of each segment before its number.
+	 * @param digits The number of digits in each segment number.
+	 * @return The segment files.
+	 */
+	static List<File> segments(File first, String prefix, int digits) {
+		File dir = first.getAbsoluteFile().getParentFile();
+		List<File> segments = new ArrayList<File>();
+		for (int n = 1;; n++) {
+			File segment = new File(dir, String.format("%s%0" + digits + "d", prefix, n));
+			if (!segment.isFile()) {
+				return segments;
+			}
+			segments.add(segment);
+		}
+	}
+
+	/**
+	 * Get the number of segments.
+	 *
+	 * @return The number of segments.
+	 */
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.ImageSource#read(java.nio.ByteBuffer, long)
+	 */
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (position >= size()) {
+			return -1;
+		}
+		int i = Arrays.binarySearch(starts, position);
+		if (i < 0) {
+			i = -i - 2;
+		}
+		int total = 0;
+		int limit = dst.limit();
+		try {
+			// Read up to the end of each segment in turn, skipping any that are empty.
+			while (dst.hasRemaining() && i < segments.length) {
+				long pos = position + total;
+				long end = starts[i + 1];
+				if (pos >= end) {
+					i++;
+					continue;
+				}
+				dst.limit((int) Math.min(limit, dst.position() + (end - pos)));
+				int read = segments[i].getChannel().read(dst, pos - starts[i]);
+				if (read < 0) {
+					throw new IOException("Segment " + i + " of the image is shorter than when it was opened");
+				}
+				total += read;
+				dst.limit(limit);
+			}
+		} finally {
+			dst.limit(limit);
+		}
+		return total;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see com.schatzforensic.nanddevice.ImageSource#size()
+	 */
+	@Override
+	public long size() {
+		return starts[segments.length];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (RandomAccessFile f : segments) {
+			try {
+				f.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
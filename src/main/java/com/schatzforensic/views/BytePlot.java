@@ -17,16 +17,28 @@
 */ 
 package com.schatzforensic.views;
 
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
-import javax.imageio.ImageIO;
+import com.schatzforensic.nanddevice.BufferPool;
 
 /**
  * BytePlot
+ * <p>
+ * A plot either holds the whole image in memory until it is rendered, or streams it one row at a time to a PNG or
+ * other row sink. When streaming only the current row is held, so rows must be added in order, and the image is
+ * completed with finish() rather than render().
  */
 public class BytePlot {
 
@@ -39,13 +51,41 @@ public class BytePlot {
 	 */
 	protected int height;
 	/**
-	 * The buffered image.
+	 * The buffered image, or null when streaming.
 	 */
 	protected BufferedImage im;
 	/**
-	 * The rasterisation engine.
+	 * The rasterisation engine, or null when streaming.
 	 */
 	protected WritableRaster wr;
+	/**
+	 * The pixel array backing the raster, or the current row when streaming.
+	 */
+	protected byte[] pixels;
+	/**
+	 * The distance between the start of each row in the pixel array.
+	 */
+	protected int scanlineStride;
+	/**
+	 * True if the plot is streamed rather than held in memory.
+	 */
+	private final boolean streaming;
+	/**
+	 * The stream a PNG is written to when streaming to a stream.
+	 */
+	private final OutputStream streamTo;
+	/**
+	 * Where rows are written when streaming. For a stream this is a PNG writer created when the first row is written.
+	 */
+	private RowSink sink;
+	/**
+	 * The row held in the pixel array when streaming.
+	 */
+	private int currentRow;
+	/**
+	 * How the PNG is compressed.
+	 */
+	private PngEncoding encoding = PngEncoding.DEFAULT;
 
 	/**
 	 * Create a new BytePlot with given width and height
@@ -54,16 +94,145 @@ public class BytePlot {
 	 * @param height The height of the byte plot in pixels.
 	 */
 	public BytePlot(int width, int height) {
+		this(width, height, (OutputStream) null);
+	}
+
+	/**
+	 * Create a new BytePlot with given width and height which streams the image to a PNG as rows are completed.
+	 * 
+	 * @param width The width of the byte plot in pixels.
+	 * @param height The height of the byte plot in pixels.
+	 * @param os The stream to write the PNG to, or null to hold the whole image in memory.
+	 */
+	public BytePlot(int width, int height, OutputStream os) {
 		this.height = height;
 		this.width = width;
+		this.streamTo = os;
+		this.streaming = os != null;
 	}
 
 	/**
-	 * Initialise the buffered image instance.
+	 * Create a new BytePlot with given width and height which streams rows to a sink as they are completed.
+	 * 
+	 * @param width The width of the byte plot in pixels.
+	 * @param height The height of the byte plot in pixels.
+	 * @param sink The sink to write rows to.
+	 */
+	public BytePlot(int width, int height, RowSink sink) {
+		this.height = height;
+		this.width = width;
+		this.streamTo = null;
+		this.sink = sink;
+		this.streaming = true;
+	}
+
+	/**
+	 * Initialise the buffered image instance, or the row buffer when streaming.
+	 * 
+	 * @throws IllegalArgumentException If the image is not streamed and has too many pixels to hold in an array.
 	 */
 	protected void init() {
-		im = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-		wr = im.getRaster();
+		if (streaming) {
+			pixels = new byte[width];
+			scanlineStride = width;
+			currentRow = 0;
+			prepareRow(0);
+			return;
+		}
+
+		// The raster is backed by a pooled array, returned by release() once the image has been rendered.
+		if ((long) width * height > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format("A %d by %d pixel image is too large to hold in memory, "
+					+ "so must be streamed (--stream) or made shorter", width, height));
+		}
+		pixels = BufferPool.SHARED.acquireArray(width * height);
+		wr = Raster.createInterleavedRaster(new DataBufferByte(pixels, pixels.length), width, height, width, 1,
+				new int[] { 0 }, null);
+		IndexColorModel palette = getPalette();
+		if (palette == null) {
+			im = new BufferedImage(new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+					new int[] { 8 }, false, true, Transparency.OPAQUE, DataBuffer.TYPE_BYTE), wr, false, null);
+		} else {
+			im = new BufferedImage(palette, wr, false, null);
+		}
+		scanlineStride = width;
+		for (int y = 0; y < height; y++) {
+			prepareRow(y * scanlineStride);
+		}
+	}
+
+	/**
+	 * Set how the PNG is compressed. When streaming this must be set before any rows are added.
+	 * 
+	 * @param encoding The PNG encoding.
+	 */
+	public void setEncoding(PngEncoding encoding) {
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Get the palette of the image.
+	 * 
+	 * @return The palette, or null for a grayscale image.
+	 */
+	protected IndexColorModel getPalette() {
+		return null;
+	}
+
+	/**
+	 * Draw anything which is common to every row, such as separators, before data is added to it.
+	 * 
+	 * @param offset The offset of the row in the pixel array.
+	 */
+	protected void prepareRow(int offset) {
+	}
+
+	/**
+	 * Get the offset of a row in the pixel array. When streaming, any rows before it are written out first.
+	 * 
+	 * @param y The row.
+	 * @return The offset of the row.
+	 * @throws IOException If writing the earlier rows failed.
+	 */
+	protected int rowOffset(int y) throws IOException {
+		if (!streaming) {
+			return y * scanlineStride;
+		}
+		if (y < currentRow) {
+			throw new IllegalStateException("Rows must be added in order when streaming");
+		}
+		while (currentRow < y) {
+			nextRow();
+		}
+		return 0;
+	}
+
+	private void nextRow() throws IOException {
+		if (sink == null) {
+			sink = new PngWriter(streamTo, width, height, getPalette(), encoding);
+		}
+		sink.writeRow(pixels, 0);
+		currentRow++;
+		Arrays.fill(pixels, (byte) 0);
+		prepareRow(0);
+	}
+
+	/**
+	 * Copy bytes from a buffer directly into the pixel array.
+	 * 
+	 * @param src The buffer to copy from.
+	 * @param srcIndex The index in the buffer of the first byte to copy.
+	 * @param dstIndex The index in the pixel array to copy to.
+	 * @param length The number of bytes to copy.
+	 */
+	protected void copyPixels(ByteBuffer src, int srcIndex, int dstIndex, int length) {
+		if (src.hasArray()) {
+			System.arraycopy(src.array(), src.arrayOffset() + srcIndex, pixels, dstIndex, length);
+		} else {
+			ByteBuffer view = src.duplicate();
+			view.position(srcIndex);
+			view.get(pixels, dstIndex, length);
+		}
 	}
 
 	/**
@@ -71,13 +240,11 @@ public class BytePlot {
 	 * 
 	 * @param offset The offset of the buffer in the whole image.
 	 * @param buf The buffer.
+	 * @throws IOException If streaming the previous rows failed.
 	 */
-	public void addBuf(int offset, ByteBuffer buf) {
-		for (int i = 0; i < width; i++) {
-			byte val = buf.get();
-			int y = offset / width;
-			wr.setSample(i, y, 0, val);
-		}
+	public void addBuf(int offset, ByteBuffer buf) throws IOException {
+		int y = offset / width;
+		buf.get(pixels, rowOffset(y), width);
 	}
 
 	/**
@@ -85,13 +252,11 @@ public class BytePlot {
 	 * 
 	 * @param offset The offset of the buffer in the whole image.
 	 * @param buf The buffer.
+	 * @throws IOException If streaming the previous rows failed.
 	 */
-	public void addBuf(int offset, byte[] buf) {
-		for (int i = 0; i < width; i++) {
-			byte val = buf[i];
-			int y = offset / width;
-			wr.setSample(i, y, 0, val);
-		}
+	public void addBuf(int offset, byte[] buf) throws IOException {
+		int y = offset / width;
+		System.arraycopy(buf, 0, pixels, rowOffset(y), width);
 	}
 
 	/**
@@ -101,6 +266,47 @@ public class BytePlot {
 	 * @throws IOException
 	 */
 	public void render(OutputStream os) throws IOException {
-		ImageIO.write(im, "png", os);
+		if (im == null) {
+			throw new IllegalStateException("A streaming plot is completed with finish()");
+		}
+		PngWriter writer = new PngWriter(os, width, height, getPalette(), encoding);
+		try {
+			for (int y = 0; y < height; y++) {
+				writer.writeRow(pixels, y * scanlineStride);
+			}
+			writer.finish();
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Complete a streaming plot, writing the remaining rows and completing the sink.
+	 * 
+	 * @throws IOException If writing the image failed.
+	 */
+	public void finish() throws IOException {
+		if (!streaming) {
+			throw new IllegalStateException("Only a streaming plot can be finished");
+		}
+		rowOffset(height - 1);
+		nextRow();
+		sink.finish();
+	}
+
+	/**
+	 * Return the pixel array of a plot held in memory to the shared buffer pool once the image has been rendered, or
+	 * close the PNG writer of a plot streamed to a stream. The plot cannot be used afterwards.
+	 */
+	public void release() {
+		if (streamTo != null && sink != null) {
+			((PngWriter) sink).close();
+		}
+		if (im != null) {
+			BufferPool.SHARED.release(pixels);
+			im = null;
+			wr = null;
+			pixels = null;
+		}
 	}
 }
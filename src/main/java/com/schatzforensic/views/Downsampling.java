@@ -0,0 +1,180 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.views;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * How runs of bytes are reduced to a single pixel value so a large device can be plotted in a smaller image. The page
+ * data and spare of each chunk are reduced separately, so a downsampled plot keeps their columns apart.
+ */
+public class Downsampling {
+
+	/**
+	 * One pixel per byte.
+	 */
+	public static final Downsampling NONE = new Downsampling(1, Aggregate.MEAN);
+
+	/**
+	 * How the bytes of a run are combined.
+	 */
+	public enum Aggregate {
+		/**
+		 * The mean byte value.
+		 */
+		MEAN,
+		/**
+		 * The smallest byte value.
+		 */
+		MIN,
+		/**
+		 * The largest byte value.
+		 */
+		MAX,
+		/**
+		 * The Shannon entropy of the run, scaled so the most a run of its length can have is 255.
+		 */
+		ENTROPY
+	};
+
+	private final int bytesPerPixel;
+	private final Aggregate aggregate;
+	/**
+	 * The histogram each run is counted into for ENTROPY. A downsampling is shared by the threads rendering a plot, so
+	 * each thread has its own.
+	 */
+	private final ThreadLocal<int[]> histograms = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[256];
+		}
+	};
+
+	/**
+	 * Create a downsampling.
+	 *
+	 * @param bytesPerPixel The number of bytes reduced to each pixel.
+	 * @param aggregate How the bytes are combined.
+	 */
+	public Downsampling(int bytesPerPixel, Aggregate aggregate) {
+		if (bytesPerPixel < 1) {
+			throw new IllegalArgumentException("Bytes per pixel must be positive");
+		}
+		this.bytesPerPixel = bytesPerPixel;
+		this.aggregate = aggregate;
+	}
+
+	/**
+	 * Get the number of bytes reduced to each pixel.
+	 *
+	 * @return The bytes per pixel.
+	 */
+	public int getBytesPerPixel() {
+		return bytesPerPixel;
+	}
+
+	/**
+	 * Get how the bytes are combined.
+	 *
+	 * @return The aggregate.
+	 */
+	public Aggregate getAggregate() {
+		return aggregate;
+	}
+
+	/**
+	 * Does this downsampling plot a pixel per byte.
+	 *
+	 * @return True if no bytes are combined.
+	 */
+	public boolean isNone() {
+		return bytesPerPixel == 1;
+	}
+
+	/**
+	 * Get the number of pixels a run of bytes is reduced to. A partial run at the end gets a pixel of its own.
+	 *
+	 * @param length The number of bytes.
+	 * @return The number of pixels.
+	 */
+	public int getLength(int length) {
+		return (length + bytesPerPixel - 1) / bytesPerPixel;
+	}
+
+	/**
+	 * Reduce a run of bytes.
+	 *
+	 * @param src The buffer holding the bytes.
+	 * @param srcIndex The absolute index of the first byte.
+	 * @param length The number of bytes.
+	 * @param dst The array to write getLength(length) values to.
+	 * @param dstIndex The index of the first value.
+	 */
+	public void reduce(ByteBuffer src, int srcIndex, int length, byte[] dst, int dstIndex) {
+		int[] histogram = aggregate == Aggregate.ENTROPY ? histograms.get() : null;
+		for (int start = 0; start < length; start += bytesPerPixel) {
+			int n = Math.min(bytesPerPixel, length - start);
+			int base = srcIndex + start;
+			int value;
+			switch (aggregate) {
+			case MIN:
+				value = 255;
+				for (int i = 0; i < n; i++) {
+					value = Math.min(value, src.get(base + i) & 0xff);
+				}
+				break;
+			case MAX:
+				value = 0;
+				for (int i = 0; i < n; i++) {
+					value = Math.max(value, src.get(base + i) & 0xff);
+				}
+				break;
+			case ENTROPY:
+				value = entropy(src, base, n, histogram);
+				break;
+			default:
+				int sum = 0;
+				for (int i = 0; i < n; i++) {
+					sum += src.get(base + i) & 0xff;
+				}
+				value = (sum + n / 2) / n;
+				break;
+			}
+			dst[dstIndex++] = (byte) value;
+		}
+	}
+
+	private static int entropy(ByteBuffer src, int base, int n, int[] histogram) {
+		if (n < 2) {
+			return 0;
+		}
+		Arrays.fill(histogram, 0);
+		for (int i = 0; i < n; i++) {
+			histogram[src.get(base + i) & 0xff]++;
+		}
+		double entropy = 0;
+		for (int count : histogram) {
+			if (count > 0) {
+				double p = (double) count / n;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return (int) Math.round(Math.max(0, entropy) / Math.log(Math.min(n, 256)) * 255);
+	}
+}
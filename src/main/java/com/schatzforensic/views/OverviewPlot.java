@@ -0,0 +1,289 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.views;
+
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A compact overview of a whole NAND device, summarising each page in one pixel, or each run of bytes in one pixel,
+ * rather than plotting every byte. Pages are laid out left to right, top to bottom, and the image is streamed to a PNG
+ * a row at a time as pages are added, so the device is summarised in a single pass holding one row.
+ */
+public class OverviewPlot {
+
+	/**
+	 * What the overview shows.
+	 */
+	public enum Mode {
+		/**
+		 * The Shannon entropy of each page's data, from black at 0 through blue and red to yellow at 8 bits per byte.
+		 */
+		ENTROPY,
+		/**
+		 * The most common class of byte in each run of bytes: zero (black), 0xFF (white), printable ASCII (blue), other
+		 * bytes with the high bit set (red), or other control characters (green).
+		 */
+		BYTE_CLASS,
+		/**
+		 * The fraction of each spare's bytes which differ from the previous page's spare, from black for none to
+		 * yellow for all. The first page has no previous spare, so is drawn black.
+		 */
+		SPARE_DIFF
+	};
+
+	private static final int ZERO = 0;
+	private static final int ERASED = 1;
+	private static final int ASCII = 2;
+	private static final int HIGH = 3;
+	private static final int CONTROL = 4;
+
+	/**
+	 * The class of each byte value.
+	 */
+	private static final byte[] BYTE_CLASSES = new byte[256];
+
+	/**
+	 * Black through blue, red and yellow.
+	 */
+	private static final IndexColorModel HEAT;
+
+	private static final IndexColorModel CLASSES;
+
+	static {
+		for (int v = 0; v < 256; v++) {
+			int c;
+			if (v == 0) {
+				c = ZERO;
+			} else if (v == 0xff) {
+				c = ERASED;
+			} else if ((v >= 0x20 && v < 0x7f) || v == '\t' || v == '\n' || v == '\r') {
+				c = ASCII;
+			} else if (v >= 0x80) {
+				c = HIGH;
+			} else {
+				c = CONTROL;
+			}
+			BYTE_CLASSES[v] = (byte) c;
+		}
+
+		byte[] r = new byte[256];
+		byte[] g = new byte[256];
+		byte[] b = new byte[256];
+		for (int i = 0; i < 256; i++) {
+			if (i < 85) {
+				r[i] = 0;
+				g[i] = 0;
+				b[i] = (byte) (i * 3);
+			} else if (i < 170) {
+				r[i] = (byte) ((i - 85) * 3);
+				g[i] = 0;
+				b[i] = (byte) ((170 - i) * 3);
+			} else {
+				r[i] = (byte) 255;
+				g[i] = (byte) ((i - 170) * 3);
+				b[i] = 0;
+			}
+		}
+		HEAT = new IndexColorModel(8, 256, r, g, b);
+
+		CLASSES = new IndexColorModel(8, 5, new byte[] { 0, (byte) 255, 0x30, (byte) 0xd0, 0x30 }, new byte[] { 0,
+				(byte) 255, 0x60, 0x30, (byte) 0xb0 }, new byte[] { 0, (byte) 255, (byte) 0xe0, 0x30, 0x30 });
+	}
+
+	private final Mode mode;
+	private final int pageSize;
+	private final int spareSize;
+	private final int bytesPerPixel;
+	private final int width;
+	private final int height;
+	private final PngWriter png;
+
+	private final byte[] row;
+	private int x;
+	private int rows;
+
+	private final double[] entropyTerms;
+	private final int[] histogram = new int[256];
+	private final int[] classCounts = new int[5];
+	private final byte[] previousSpare;
+	private boolean seeded;
+
+	/**
+	 * Create an overview and write its PNG header.
+	 *
+	 * @param os The stream to write the PNG to. It is not closed by the plot.
+	 * @param mode What the overview shows.
+	 * @param pageSize The page data size.
+	 * @param spareSize The spare size.
+	 * @param pages The number of pages which will be added.
+	 * @param width The width of the image in pixels.
+	 * @param bytesPerPixel The number of bytes summarised by each pixel in BYTE_CLASS mode. The other modes show a
+	 *            pixel per page.
+	 * @param encoding How to compress the image.
+	 * @throws IOException If writing the header failed.
+	 */
+	public OverviewPlot(OutputStream os, Mode mode, int pageSize, int spareSize, long pages, int width,
+			int bytesPerPixel, PngEncoding encoding) throws IOException {
+		if (width < 1 || bytesPerPixel < 1) {
+			throw new IllegalArgumentException("Width and bytes per pixel must be positive");
+		}
+		this.mode = mode;
+		this.pageSize = pageSize;
+		this.spareSize = spareSize;
+		this.bytesPerPixel = bytesPerPixel;
+		this.width = width;
+		long pixels = pages * getPixelsPerPage(mode, pageSize, bytesPerPixel);
+		long h = Math.max(1, (pixels + width - 1) / width);
+		if (h > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Overview too tall, use a wider image");
+		}
+		this.height = (int) h;
+		this.png = new PngWriter(os, width, height, mode == Mode.BYTE_CLASS ? CLASSES : HEAT, encoding);
+		this.row = new byte[width];
+
+		this.entropyTerms = new double[pageSize + 1];
+		for (int n = 1; n <= pageSize; n++) {
+			entropyTerms[n] = n * Math.log(n) / Math.log(2);
+		}
+		this.previousSpare = new byte[spareSize];
+	}
+
+	/**
+	 * Get the number of pixels each page is summarised in.
+	 *
+	 * @param mode What the overview shows.
+	 * @param pageSize The page data size.
+	 * @param bytesPerPixel The number of bytes summarised by each pixel in BYTE_CLASS mode.
+	 * @return The pixels per page.
+	 */
+	public static int getPixelsPerPage(Mode mode, int pageSize, int bytesPerPixel) {
+		if (mode == Mode.BYTE_CLASS) {
+			return (pageSize + bytesPerPixel - 1) / bytesPerPixel;
+		}
+		return 1;
+	}
+
+	/**
+	 * Get the height of the image.
+	 *
+	 * @return The height in pixels.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Add the next page to the overview.
+	 *
+	 * @param data The buffer holding the page data.
+	 * @param dataOffset The absolute offset of the page data in the buffer.
+	 * @param spare The buffer holding the spare.
+	 * @param spareOffset The absolute offset of the spare in the buffer.
+	 * @throws IOException If writing a completed row failed.
+	 */
+	public void addPage(ByteBuffer data, int dataOffset, ByteBuffer spare, int spareOffset) throws IOException {
+		switch (mode) {
+		case ENTROPY:
+			Arrays.fill(histogram, 0);
+			for (int i = 0; i < pageSize; i++) {
+				histogram[data.get(dataOffset + i) & 0xff]++;
+			}
+			double sum = 0;
+			for (int n : histogram) {
+				sum += entropyTerms[n];
+			}
+			double entropy = pageSize == 0 ? 0 : Math.log(pageSize) / Math.log(2) - sum / pageSize;
+			addPixel((int) Math.round(Math.max(0, entropy) / 8 * 255));
+			break;
+		case BYTE_CLASS:
+			for (int start = 0; start < pageSize; start += bytesPerPixel) {
+				Arrays.fill(classCounts, 0);
+				int end = Math.min(pageSize, start + bytesPerPixel);
+				for (int i = start; i < end; i++) {
+					classCounts[BYTE_CLASSES[data.get(dataOffset + i) & 0xff]]++;
+				}
+				int best = 0;
+				for (int c = 1; c < classCounts.length; c++) {
+					if (classCounts[c] > classCounts[best]) {
+						best = c;
+					}
+				}
+				addPixel(best);
+			}
+			break;
+		case SPARE_DIFF:
+			if (!seeded) {
+				// Compare the first page with itself rather than with an all zero spare.
+				for (int i = 0; i < spareSize; i++) {
+					previousSpare[i] = spare.get(spareOffset + i);
+				}
+				seeded = true;
+			}
+			int differ = 0;
+			for (int i = 0; i < spareSize; i++) {
+				byte b = spare.get(spareOffset + i);
+				if (b != previousSpare[i]) {
+					differ++;
+					previousSpare[i] = b;
+				}
+			}
+			addPixel(spareSize == 0 ? 0 : (differ * 255 + spareSize / 2) / spareSize);
+			break;
+		}
+	}
+
+	private void addPixel(int index) throws IOException {
+		row[x++] = (byte) index;
+		if (x == width) {
+			png.writeRow(row, 0);
+			rows++;
+			x = 0;
+		}
+	}
+
+	/**
+	 * Complete the image, filling the rest of the last row with black.
+	 *
+	 * @throws IOException If writing the image failed.
+	 */
+	public void finish() throws IOException {
+		if (x > 0) {
+			Arrays.fill(row, x, width, (byte) 0);
+			png.writeRow(row, 0);
+			rows++;
+			x = 0;
+		}
+		while (rows < height) {
+			Arrays.fill(row, (byte) 0);
+			png.writeRow(row, 0);
+			rows++;
+		}
+		png.finish();
+	}
+
+	/**
+	 * Release the PNG writer, whether or not the image was finished. The stream is not closed.
+	 */
+	public void close() {
+		png.close();
+	}
+}
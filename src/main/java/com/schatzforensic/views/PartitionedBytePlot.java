@@ -17,35 +17,61 @@
 */ 
 package com.schatzforensic.views;
 
-import java.awt.Color;
-import java.awt.RenderingHints;
-import java.awt.Transparency;
-import java.awt.color.ColorSpace;
-import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.DataBuffer;
-import java.awt.image.RenderedImage;
-import java.awt.image.SampleModel;
-import java.awt.image.renderable.ParameterBlock;
+import java.awt.image.IndexColorModel;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
-import javax.imageio.ImageIO;
-import javax.media.jai.ImageLayout;
-import javax.media.jai.JAI;
-import javax.media.jai.RasterFactory;
-import javax.media.jai.RenderedOp;
-
+/**
+ * A byte plot of NAND chunks, with the user data and spare of each chunk separated by red columns. The image is a
+ * palette image of 254 grays plus red, so the separators are simply a palette index in the one byte raster. Chunks
+ * which are not worth plotting, such as erased pages, may be drawn in the blue placeholder colour instead.
+ */
 public class PartitionedBytePlot extends BytePlot {
 
 	/**
-	* this gets rid of exception for not using native acceleration
-	*/
-	static 	{
-		System.setProperty("com.sun.media.jai.disableMediaLib", "true");
+	 * The number of gray levels in the palette.
+	 */
+	public static final int GRAY_LEVELS = 254;
+	/**
+	 * The palette index of the red separator columns.
+	 */
+	public static final byte SEPARATOR = (byte) GRAY_LEVELS;
+	/**
+	 * The palette index of the blue placeholder drawn for chunks which are not plotted.
+	 */
+	public static final byte PLACEHOLDER = (byte) (GRAY_LEVELS + 1);
+	/**
+	 * The palette of the plot.
+	 */
+	public static final IndexColorModel PALETTE;
+	/**
+	 * Maps a byte value to the palette index of the nearest gray.
+	 */
+	private static final byte[] GRAY_INDEX = new byte[256];
+
+	static {
+		byte[] r = new byte[GRAY_LEVELS + 2];
+		byte[] g = new byte[GRAY_LEVELS + 2];
+		byte[] b = new byte[GRAY_LEVELS + 2];
+		for (int i = 0; i < GRAY_LEVELS; i++) {
+			byte level = (byte) ((i * 255 + (GRAY_LEVELS - 1) / 2) / (GRAY_LEVELS - 1));
+			r[i] = level;
+			g[i] = level;
+			b[i] = level;
+		}
+		r[GRAY_LEVELS] = (byte) 255;
+		r[GRAY_LEVELS + 1] = (byte) 0x20;
+		g[GRAY_LEVELS + 1] = (byte) 0x40;
+		b[GRAY_LEVELS + 1] = (byte) 0x90;
+		PALETTE = new IndexColorModel(8, GRAY_LEVELS + 2, r, g, b);
+
+		for (int v = 0; v < 256; v++) {
+			GRAY_INDEX[v] = (byte) ((v * (GRAY_LEVELS - 1) + 127) / 255);
+		}
 	}
-	
+
 	/**
 	 * The size of the blocks to use.
 	 */
@@ -83,22 +109,71 @@ public class PartitionedBytePlot extends BytePlot {
 	 * @param layoutDirection The direction of the layout.
 	 */
 	public PartitionedBytePlot(int width, int height, int blockSize, int spareSize, LayoutDirection layoutDirection) {
-		super(width, height);
+		this(width, height, blockSize, spareSize, layoutDirection, (OutputStream) null);
+	}
+
+	/**
+	 * Create a new partitioned Byte Plot which streams the image to a PNG as rows are completed. Chunks must be added
+	 * in row order: for the vertical layout, one chunk from each column in turn.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param blockSize The block size to utilise.
+	 * @param spareSize The size of the spare
+	 * @param layoutDirection The direction of the layout.
+	 * @param os The stream to write the PNG to, or null to hold the whole image in memory.
+	 */
+	public PartitionedBytePlot(int width, int height, int blockSize, int spareSize, LayoutDirection layoutDirection,
+			OutputStream os) {
+		super(width, height, os);
+		this.blockSize = blockSize;
+		this.spareSize = spareSize;
+		this.chunkSize = blockSize + spareSize;
+		this.tiles = width / chunkSize;
+		this.width = getImageWidth(width, blockSize, spareSize);
+		this.direction = layoutDirection;
+		init();
+	}
+
+	/**
+	 * Create a new partitioned Byte Plot which streams rows to a sink as they are completed. Chunks must be added in
+	 * row order: for the vertical layout, one chunk from each column in turn.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param blockSize The block size to utilise.
+	 * @param spareSize The size of the spare
+	 * @param layoutDirection The direction of the layout.
+	 * @param sink The sink to write rows to. Its rows are getImageWidth(width, blockSize, spareSize) pixels wide.
+	 */
+	public PartitionedBytePlot(int width, int height, int blockSize, int spareSize, LayoutDirection layoutDirection,
+			RowSink sink) {
+		super(width, height, sink);
 		this.blockSize = blockSize;
 		this.spareSize = spareSize;
 		this.chunkSize = blockSize + spareSize;
 		this.tiles = width / chunkSize;
-		this.width = (chunkSize + 2) * tiles;
+		this.width = getImageWidth(width, blockSize, spareSize);
 		this.direction = layoutDirection;
 		init();
 	}
 
+	/**
+	 * Get the width of the image drawn for a plot, which adds the separator columns to each chunk.
+	 * @param width The width of the plot.
+	 * @param blockSize The block size to utilise.
+	 * @param spareSize The size of the spare
+	 * @return The width of the image in pixels.
+	 */
+	public static int getImageWidth(int width, int blockSize, int spareSize) {
+		int chunkSize = blockSize + spareSize;
+		return (chunkSize + 2) * (width / chunkSize);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see com.evimetry.views.BytePlot#addBuf(int, java.nio.ByteBuffer)
 	 */
 	@Override
-	public void addBuf(int offset, ByteBuffer buf) {
+	public void addBuf(int offset, ByteBuffer buf) throws IOException {
 		if (direction == LayoutDirection.HORIZONTAL) {
 			addBufHorizontally(offset, buf);
 		} else {
@@ -106,94 +181,118 @@ public class PartitionedBytePlot extends BytePlot {
 		}
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see com.evimetry.views.BytePlot#render(java.io.OutputStream)
+	/**
+	 * Add a run of chunks whose page data and spares are held in separate buffers, as read by
+	 * NANDDevice.readPages.
+	 * 
+	 * @param chunkNo The number of the first chunk in the image.
+	 * @param count The number of chunks.
+	 * @param data The page data of the chunks, one after another.
+	 * @param spare The spares of the chunks, one after another.
+	 * @throws IOException If streaming the previous rows failed.
 	 */
-	@Override
-	public void render(OutputStream os) throws IOException {
-		double[][] matrix = { { 1.0D, 0.0D }, { 1.0D, 0.0D }, { 1.0D, 0.0D } };
-
-		//double[] red = { 1.0D, 0D, 0D };
-
-		ParameterBlock pb = new ParameterBlock();
-		pb.addSource(im);
-		pb.add(matrix);
-
-		ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_sRGB);
-
-		ColorModel cm = RasterFactory.createComponentColorModel(DataBuffer.TYPE_BYTE, cs, false, false,
-				Transparency.OPAQUE);
-
-		SampleModel sm = cm.createCompatibleSampleModel(im.getWidth(), im.getHeight());
-
-		ImageLayout imageLayout = new ImageLayout();
-		imageLayout.setSampleModel(sm);
-		imageLayout.setColorModel(cm);
-
-		RenderingHints renderingHints = new RenderingHints(null);
-		renderingHints.clear();
-		renderingHints.put(JAI.KEY_IMAGE_LAYOUT, imageLayout);
-
-		// Perform the band combine operation.
+	public void addPages(long chunkNo, int count, ByteBuffer data, ByteBuffer spare) throws IOException {
+		for (int c = 0; c < count; c++) {
+			int x;
+			int y;
+			if (direction == LayoutDirection.HORIZONTAL) {
+				x = (int) ((chunkNo + c) % tiles) * (chunkSize + 2);
+				y = (int) ((chunkNo + c) / tiles);
+			} else {
+				x = (int) ((chunkNo + c) / height) * (chunkSize + 2);
+				y = (int) ((chunkNo + c) % height);
+			}
+			int row = rowOffset(y) + x;
+			copyPixels(data, c * blockSize, row, blockSize);
+			copyPixels(spare, c * spareSize, row + blockSize + 1, spareSize);
+		}
+	}
 
-		RenderedOp ro = (RenderedOp) RenderedOp.wrapRenderedImage((RenderedImage) JAI.create("bandcombine", pb,
-				renderingHints));
-		BufferedImage bi = ro.getAsBufferedImage();
+	/**
+	 * Draw chunks in the placeholder colour, leaving the separators between their user data and spares.
+	 * @param chunkNo The number of the first chunk in the plot.
+	 * @param count The number of chunks.
+	 * @throws IOException If streaming completed rows failed.
+	 */
+	public void addPlaceholders(long chunkNo, int count) throws IOException {
+		for (int c = 0; c < count; c++) {
+			int x;
+			int y;
+			if (direction == LayoutDirection.HORIZONTAL) {
+				x = (int) ((chunkNo + c) % tiles) * (chunkSize + 2);
+				y = (int) ((chunkNo + c) / tiles);
+			} else {
+				x = (int) ((chunkNo + c) / height) * (chunkSize + 2);
+				y = (int) ((chunkNo + c) % height);
+			}
+			int row = rowOffset(y) + x;
+			Arrays.fill(pixels, row, row + blockSize, PLACEHOLDER);
+			Arrays.fill(pixels, row + blockSize + 1, row + blockSize + 1 + spareSize, PLACEHOLDER);
+		}
+	}
 
-		for (int j = 0; j < width / (chunkSize + 2); j++) {
+	/**
+	 * Draw the separator columns of a row.
+	 */
+	@Override
+	protected void prepareRow(int offset) {
+		for (int j = 0; j < tiles; j++) {
 			int spareStartOffset = (j * (chunkSize + 2)) + blockSize;
 			int endSpareOffset = (j * (chunkSize + 2)) + blockSize + 1 + spareSize;
+			pixels[offset + spareStartOffset] = SEPARATOR;
+			pixels[offset + endSpareOffset] = SEPARATOR;
+		}
+	}
 
-			for (int yy = 0; yy < height; yy++) {
-				bi.setRGB(spareStartOffset, yy, Color.red.getRGB());
-				bi.setRGB(endSpareOffset, yy, Color.red.getRGB());
+	/*
+	 * (non-Javadoc)
+	 * @see com.schatzforensic.views.BytePlot#getPalette()
+	 */
+	@Override
+	protected IndexColorModel getPalette() {
+		return PALETTE;
+	}
+
+	/**
+	 * Copy bytes from a buffer into the pixel array, translating each byte to its gray palette index.
+	 */
+	@Override
+	protected void copyPixels(ByteBuffer src, int srcIndex, int dstIndex, int length) {
+		if (src.hasArray()) {
+			byte[] array = src.array();
+			int base = src.arrayOffset() + srcIndex;
+			for (int i = 0; i < length; i++) {
+				pixels[dstIndex + i] = GRAY_INDEX[array[base + i] & 0xff];
+			}
+		} else {
+			for (int i = 0; i < length; i++) {
+				pixels[dstIndex + i] = GRAY_INDEX[src.get(srcIndex + i) & 0xff];
 			}
 		}
-		ImageIO.write(bi, "png", os);
 	}
-	
-	private void addBufHorizontally(int offset, ByteBuffer buf) {
-		int y = offset / chunkSize;
+
+	private void addBufHorizontally(int offset, ByteBuffer buf) throws IOException {
+		int row = rowOffset(offset / chunkSize);
 		int index = 0;
 		for (int j = 0; j < tiles; j++) {
-			for (int i = 0; i < blockSize; i++) {
-				byte val = buf.get(index);
-				int x = j * (chunkSize + 2) + i;
-				wr.setSample(x, y, 0, val);
-				index++;
-			}
-
-			for (int i = 0; i < spareSize; i++) {
-				byte val = buf.get(index);
-				int x = j * (chunkSize + 2) + blockSize + 1 + i;
-				wr.setSample(x, y, 0, val);
-				index++;
-			}
+			int x = row + j * (chunkSize + 2);
+			copyPixels(buf, index, x, blockSize);
+			copyPixels(buf, index + blockSize, x + blockSize + 1, spareSize);
+			index += chunkSize;
 		}
 	}
 
-	private void addBufVertically(int offset, ByteBuffer buf) {
+	private void addBufVertically(int offset, ByteBuffer buf) throws IOException {
 		int chunkNo = offset / chunkSize;
 		int startx = chunkNo / height;
 		int starty = chunkNo % height;
 		int index = 0;
 
 		while (index < buf.limit()) {
-			for (int i = 0; i < blockSize; i++) {
-				byte val = buf.get(index);
-				int x = startx * (chunkSize + 2) + i;
-				wr.setSample(x, starty, 0, val);
-				index++;
-			}
-
-			for (int i = 0; i < spareSize; i++) {
-				byte val = buf.get(index);
-
-				int x = startx * (chunkSize + 2) + blockSize + 1 + i;
-				wr.setSample(x, starty, 0, val);
-				index++;
-			}
+			int x = rowOffset(starty) + startx * (chunkSize + 2);
+			copyPixels(buf, index, x, blockSize);
+			copyPixels(buf, index + blockSize, x + blockSize + 1, spareSize);
+			index += chunkSize;
 
 			starty++;
 			if (starty == height) {
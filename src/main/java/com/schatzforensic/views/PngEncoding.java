@@ -0,0 +1,108 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.views;
+
+import java.util.zip.Deflater;
+
+/**
+ * How PNG images are compressed: the deflate level, the row filter, and the number of threads to deflate on.
+ */
+public class PngEncoding {
+
+	/**
+	 * The default encoding: the default deflate level, no filtering, on the calling thread.
+	 */
+	public static final PngEncoding DEFAULT = new PngEncoding(Deflater.DEFAULT_COMPRESSION, Filter.NONE, 1);
+
+	/**
+	 * The PNG row filters.
+	 */
+	public enum Filter {
+		NONE(0), SUB(1), UP(2), AVERAGE(3), PAETH(4),
+		/**
+		 * Choose the filter for each row which gives the smallest sum of absolute differences.
+		 */
+		ADAPTIVE(-1);
+
+		private final int type;
+
+		private Filter(int type) {
+			this.type = type;
+		}
+
+		/**
+		 * Get the PNG filter type byte.
+		 *
+		 * @return The filter type, or -1 for adaptive filtering.
+		 */
+		public int getType() {
+			return type;
+		}
+	};
+
+	private final int level;
+	private final Filter filter;
+	private final int threads;
+
+	/**
+	 * Create a PNG encoding.
+	 *
+	 * @param level The deflate level, 0 to 9, or -1 for the default level.
+	 * @param filter The row filter.
+	 * @param threads The number of threads to deflate on. More than one splits the image data into groups of rows
+	 *            which are deflated separately and joined into a single stream.
+	 */
+	public PngEncoding(int level, Filter filter, int threads) {
+		if (level < -1 || level > 9) {
+			throw new IllegalArgumentException("Deflate level must be between 0 and 9");
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one deflate thread is required");
+		}
+		this.level = level;
+		this.filter = filter;
+		this.threads = threads;
+	}
+
+	/**
+	 * Get the deflate level.
+	 *
+	 * @return The deflate level.
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Get the row filter.
+	 *
+	 * @return The row filter.
+	 */
+	public Filter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Get the number of deflate threads.
+	 *
+	 * @return The number of deflate threads.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+}
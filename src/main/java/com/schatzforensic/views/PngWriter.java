@@ -0,0 +1,450 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.views;
+
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8 bit grayscale or palette PNG one row at a time. Each row is compressed as soon as it is written, so only
+ * the deflate window is held rather than the whole image.
+ * <p>
+ * When the encoding has more than one thread, rows are collected into groups which are deflated concurrently, each
+ * ending on a byte boundary with a sync flush and primed with the tail of the previous group, and the groups are
+ * joined into a single zlib stream.
+ */
+public class PngWriter implements RowSink {
+
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+	private static final int COLOUR_TYPE_GRAY = 0;
+	private static final int COLOUR_TYPE_PALETTE = 3;
+	/**
+	 * The largest IDAT chunk to write.
+	 */
+	private static final int MAX_CHUNK = 64 * 1024;
+	/**
+	 * The approximate amount of image data in each group deflated on its own thread.
+	 */
+	private static final int GROUP_SIZE = 1024 * 1024;
+	/**
+	 * The size of the deflate window, and so of the dictionary carried between groups.
+	 */
+	private static final int WINDOW_SIZE = 32 * 1024;
+
+	private final DataOutputStream out;
+	private final int width;
+	private final int height;
+	private final PngEncoding encoding;
+	private final IdatOutputStream chunks = new IdatOutputStream();
+	private int rows;
+
+	/**
+	 * The previous row, unfiltered.
+	 */
+	private final byte[] prior;
+	/**
+	 * The current row filtered with each filter type, including the leading filter type byte.
+	 */
+	private final byte[][] filtered = new byte[5][];
+
+	/**
+	 * The deflater when compressing on the calling thread.
+	 */
+	private Deflater deflater;
+	private DeflaterOutputStream idat;
+
+	/**
+	 * The pool when compressing groups of rows concurrently.
+	 */
+	private ExecutorService pool;
+	private final Adler32 adler = new Adler32();
+	private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+	private byte[] group;
+	private int groupLength;
+	private byte[] previousGroup;
+	private int previousGroupLength;
+
+	/**
+	 * Create a PNG writer with the default encoding and write the PNG header.
+	 *
+	 * @param os The stream to write to. It is not closed by the writer.
+	 * @param width The width of the image in pixels.
+	 * @param height The height of the image in pixels.
+	 * @param palette The palette of the image, or null for a grayscale image.
+	 * @throws IOException If writing the header failed.
+	 */
+	public PngWriter(OutputStream os, int width, int height, IndexColorModel palette) throws IOException {
+		this(os, width, height, palette, PngEncoding.DEFAULT);
+	}
+
+	/**
+	 * Create a PNG writer and write the PNG header.
+	 *
+	 * @param os The stream to write to. It is not closed by the writer.
+	 * @param width The width of the image in pixels.
+	 * @param height The height of the image in pixels.
+	 * @param palette The palette of the image, or null for a grayscale image.
+	 * @param encoding How to compress the image.
+	 * @throws IOException If writing the header failed.
+	 */
+	public PngWriter(OutputStream os, int width, int height, IndexColorModel palette, PngEncoding encoding)
+			throws IOException {
+		this.out = new DataOutputStream(os);
+		this.width = width;
+		this.height = height;
+		this.encoding = encoding;
+		this.prior = new byte[width];
+
+		out.write(SIGNATURE);
+
+		DataChunk ihdr = new DataChunk(13);
+		ihdr.putInt(width);
+		ihdr.putInt(height);
+		ihdr.put(8);
+		ihdr.put(palette == null ? COLOUR_TYPE_GRAY : COLOUR_TYPE_PALETTE);
+		ihdr.put(0); // deflate
+		ihdr.put(0); // adaptive filtering
+		ihdr.put(0); // no interlace
+		writeChunk("IHDR", ihdr.data, 0, ihdr.length);
+
+		if (palette != null) {
+			int size = palette.getMapSize();
+			DataChunk plte = new DataChunk(size * 3);
+			for (int i = 0; i < size; i++) {
+				plte.put(palette.getRed(i));
+				plte.put(palette.getGreen(i));
+				plte.put(palette.getBlue(i));
+			}
+			writeChunk("PLTE", plte.data, 0, plte.length);
+		}
+
+		if (encoding.getThreads() > 1) {
+			pool = Executors.newFixedThreadPool(encoding.getThreads(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "png-deflate");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			int rowsPerGroup = Math.max(1, GROUP_SIZE / (width + 1));
+			group = new byte[rowsPerGroup * (width + 1)];
+			// zlib header: deflate with a 32K window, no preset dictionary.
+			chunks.write(0x78);
+			chunks.write(0x9c);
+		} else {
+			deflater = new Deflater(encoding.getLevel());
+			idat = new DeflaterOutputStream(chunks, deflater, MAX_CHUNK);
+		}
+	}
+
+	/**
+	 * Write the next row of the image.
+	 *
+	 * @param row The array holding the row.
+	 * @param offset The offset of the row in the array.
+	 * @throws IOException If writing the row failed.
+	 */
+	@Override
+	public void writeRow(byte[] row, int offset) throws IOException {
+		if (rows == height) {
+			throw new IllegalStateException("All rows of the image have been written");
+		}
+		byte[] line = filter(row, offset);
+		if (pool == null) {
+			idat.write(line, 0, width + 1);
+		} else {
+			adler.update(line, 0, width + 1);
+			System.arraycopy(line, 0, group, groupLength, width + 1);
+			groupLength += width + 1;
+			if (groupLength == group.length) {
+				submitGroup(false);
+			}
+		}
+		System.arraycopy(row, offset, prior, 0, width);
+		rows++;
+	}
+
+	/**
+	 * Complete the image. The underlying stream is flushed but not closed.
+	 *
+	 * @throws IOException If fewer rows than the height of the image were written, or writing failed.
+	 */
+	@Override
+	public void finish() throws IOException {
+		if (rows != height) {
+			throw new IOException(String.format("Image incomplete: %d of %d rows written", rows, height));
+		}
+		if (pool == null) {
+			idat.finish();
+			deflater.end();
+		} else {
+			try {
+				submitGroup(true);
+				while (!pending.isEmpty()) {
+					writeGroup(pending.removeFirst());
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+			int check = (int) adler.getValue();
+			chunks.write(check >>> 24);
+			chunks.write(check >>> 16);
+			chunks.write(check >>> 8);
+			chunks.write(check);
+		}
+		chunks.flush();
+		writeChunk("IEND", new byte[0], 0, 0);
+		out.flush();
+	}
+
+	/**
+	 * Release the deflater or the compression threads, whether or not the image was finished. The underlying stream
+	 * is not closed. Calling this more than once has no further effect.
+	 */
+	public void close() {
+		if (pool == null) {
+			deflater.end();
+		} else {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Filter a row.
+	 *
+	 * @param row The array holding the row.
+	 * @param offset The offset of the row in the array.
+	 * @return The filtered row, starting with the filter type.
+	 */
+	private byte[] filter(byte[] row, int offset) {
+		int type = encoding.getFilter().getType();
+		if (type >= 0) {
+			return filter(type, row, offset);
+		}
+
+		byte[] best = null;
+		long bestSum = Long.MAX_VALUE;
+		for (int t = 0; t < filtered.length; t++) {
+			byte[] line = filter(t, row, offset);
+			long sum = 0;
+			for (int i = 1; i <= width; i++) {
+				sum += Math.abs(line[i]);
+			}
+			if (sum < bestSum) {
+				bestSum = sum;
+				best = line;
+			}
+		}
+		return best;
+	}
+
+	private byte[] filter(int type, byte[] row, int offset) {
+		byte[] line = filtered[type];
+		if (line == null) {
+			line = new byte[width + 1];
+			filtered[type] = line;
+		}
+		line[0] = (byte) type;
+		for (int i = 0; i < width; i++) {
+			int x = row[offset + i] & 0xff;
+			int a = i == 0 ? 0 : row[offset + i - 1] & 0xff;
+			int b = prior[i] & 0xff;
+			int c = i == 0 ? 0 : prior[i - 1] & 0xff;
+			int predictor;
+			switch (type) {
+			case 1:
+				predictor = a;
+				break;
+			case 2:
+				predictor = b;
+				break;
+			case 3:
+				predictor = (a + b) >>> 1;
+				break;
+			case 4:
+				int p = a + b - c;
+				int pa = Math.abs(p - a);
+				int pb = Math.abs(p - b);
+				int pc = Math.abs(p - c);
+				predictor = (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+				break;
+			default:
+				predictor = 0;
+			}
+			line[i + 1] = (byte) (x - predictor);
+		}
+		return line;
+	}
+
+	/**
+	 * Hand the current group of rows to the pool to be deflated.
+	 *
+	 * @param last True if this is the final group of the image.
+	 * @throws IOException If writing an earlier group failed.
+	 */
+	private void submitGroup(final boolean last) throws IOException {
+		final byte[] input = group;
+		final int inputLength = groupLength;
+		final byte[] dictionary = previousGroup;
+		final int dictionaryLength = Math.min(WINDOW_SIZE, previousGroupLength);
+		final int dictionaryOffset = previousGroupLength - dictionaryLength;
+		final int level = encoding.getLevel();
+
+		pending.add(pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				Deflater d = new Deflater(level, true);
+				try {
+					if (dictionary != null) {
+						d.setDictionary(dictionary, dictionaryOffset, dictionaryLength);
+					}
+					d.setInput(input, 0, inputLength);
+					ByteArrayOutputStream compressed = new ByteArrayOutputStream(inputLength / 2 + 64);
+					byte[] buf = new byte[MAX_CHUNK];
+					if (last) {
+						d.finish();
+						while (!d.finished()) {
+							compressed.write(buf, 0, d.deflate(buf));
+						}
+					} else {
+						int n;
+						do {
+							n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+							compressed.write(buf, 0, n);
+						} while (n == buf.length || !d.needsInput());
+					}
+					return compressed.toByteArray();
+				} finally {
+					d.end();
+				}
+			}
+		}));
+
+		previousGroup = input;
+		previousGroupLength = inputLength;
+		group = last ? null : new byte[input.length];
+		groupLength = 0;
+
+		// Bound the number of groups in flight.
+		while (pending.size() > encoding.getThreads() * 2) {
+			writeGroup(pending.removeFirst());
+		}
+	}
+
+	private void writeGroup(Future<byte[]> result) throws IOException {
+		try {
+			byte[] compressed = result.get();
+			chunks.write(compressed, 0, compressed.length);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while deflating image");
+		} catch (ExecutionException e) {
+			throw new IOException("Deflating image failed", e.getCause());
+		}
+	}
+
+	private void writeChunk(String type, byte[] data, int offset, int length) throws IOException {
+		byte[] typeBytes = type.getBytes(Charset.forName("US-ASCII"));
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, offset, length);
+
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, offset, length);
+		out.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * A small buffer for assembling the body of a header chunk.
+	 */
+	private static class DataChunk {
+		private final byte[] data;
+		private int length;
+
+		DataChunk(int size) {
+			data = new byte[size];
+		}
+
+		void put(int b) {
+			data[length++] = (byte) b;
+		}
+
+		void putInt(int i) {
+			put(i >>> 24);
+			put(i >>> 16);
+			put(i >>> 8);
+			put(i);
+		}
+	}
+
+	/**
+	 * Collects the compressed image data and writes it out as IDAT chunks.
+	 */
+	private class IdatOutputStream extends OutputStream {
+		private final byte[] buffer = new byte[MAX_CHUNK];
+		private int length;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (length == buffer.length) {
+				flush();
+			}
+			buffer[length++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (length == buffer.length) {
+					flush();
+				}
+				int n = Math.min(len, buffer.length - length);
+				System.arraycopy(b, off, buffer, length, n);
+				length += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (length > 0) {
+				writeChunk("IDAT", buffer, 0, length);
+				length = 0;
+			}
+		}
+	}
+}
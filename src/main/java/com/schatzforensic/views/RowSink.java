@@ -0,0 +1,41 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.views;
+
+import java.io.IOException;
+
+/**
+ * Somewhere the rows of a streaming plot are written, top to bottom.
+ */
+public interface RowSink {
+	/**
+	 * Write the next row of the image.
+	 * 
+	 * @param row The array holding the row.
+	 * @param offset The offset of the row in the array.
+	 * @throws IOException If writing the row failed.
+	 */
+	public void writeRow(byte[] row, int offset) throws IOException;
+
+	/**
+	 * Complete the image once every row has been written.
+	 * 
+	 * @throws IOException If completing the image failed.
+	 */
+	public void finish() throws IOException;
+}
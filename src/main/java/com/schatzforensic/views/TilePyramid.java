@@ -0,0 +1,237 @@
+/*
+ 	NAND Byteplotter
+    Copyright (C) 2014  Dr Bradley L Schatz
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.schatzforensic.views;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a streamed plot as a Deep Zoom tile pyramid: NAME.dzi describing the image, and NAME_files/LEVEL/COL_ROW.png
+ * tiles for every zoom level. Rows are cut into tiles as they arrive, and each pair of rows is averaged down into the
+ * next coarser level, so the whole pyramid is built in one pass holding one band of tiles per level.
+ * <p>
+ * Rows hold indices into the PartitionedBytePlot palette. Grays are averaged when downsampling, while the marker
+ * colours above the grays, such as the separators, are kept as lines.
+ */
+public class TilePyramid implements RowSink {
+
+	/**
+	 * The default width and height of a tile.
+	 */
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	private final File tileDirectory;
+	private final int tileSize;
+	private final PngEncoding encoding;
+	private final Level top;
+
+	/**
+	 * Create a tile pyramid and write its descriptor.
+	 *
+	 * @param directory The directory to write the pyramid to.
+	 * @param name The name of the pyramid.
+	 * @param width The width of the full resolution image.
+	 * @param height The height of the full resolution image.
+	 * @param tileSize The width and height of each tile.
+	 * @param encoding How to compress the tiles.
+	 * @throws IOException If the descriptor could not be written.
+	 */
+	public TilePyramid(File directory, String name, int width, int height, int tileSize, PngEncoding encoding)
+			throws IOException {
+		this.tileDirectory = new File(directory, name + "_files");
+		this.tileSize = tileSize;
+		this.encoding = encoding;
+
+		int maxLevel = 0;
+		while ((1L << maxLevel) < Math.max(width, height)) {
+			maxLevel++;
+		}
+		Level level = null;
+		for (int l = 0; l <= maxLevel; l++) {
+			level = new Level(l, ceilShift(width, maxLevel - l), ceilShift(height, maxLevel - l), level);
+		}
+		top = level;
+
+		Writer dzi = new OutputStreamWriter(new FileOutputStream(new File(directory, name + ".dzi")),
+				Charset.forName("UTF-8"));
+		try {
+			dzi.write(String.format("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+					+ "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" TileSize=\"%d\" Overlap=\"0\" "
+					+ "Format=\"png\">\n  <Size Width=\"%d\" Height=\"%d\"/>\n</Image>\n", tileSize, width, height));
+		} finally {
+			dzi.close();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.schatzforensic.views.RowSink#writeRow(byte[], int)
+	 */
+	@Override
+	public void writeRow(byte[] row, int offset) throws IOException {
+		top.addRow(row, offset);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see com.schatzforensic.views.RowSink#finish()
+	 */
+	@Override
+	public void finish() throws IOException {
+		for (Level level = top; level != null; level = level.coarser) {
+			level.finish();
+		}
+	}
+
+	private static int ceilShift(int value, int shift) {
+		return (int) (((long) value + (1L << shift) - 1) >> shift);
+	}
+
+	/**
+	 * Average a 2x2 block of palette indices. A marker colour covering at least half the block is kept, so one pixel
+	 * lines survive downsampling; otherwise only the grays are averaged.
+	 */
+	private static byte downsample(byte a, byte b, byte c, byte d) {
+		int ia = a & 0xff;
+		int ib = b & 0xff;
+		int ic = c & 0xff;
+		int id = d & 0xff;
+		int markers = 0;
+		int sum = 0;
+		if (ia >= PartitionedBytePlot.GRAY_LEVELS) markers++; else sum += ia;
+		if (ib >= PartitionedBytePlot.GRAY_LEVELS) markers++; else sum += ib;
+		if (ic >= PartitionedBytePlot.GRAY_LEVELS) markers++; else sum += ic;
+		if (id >= PartitionedBytePlot.GRAY_LEVELS) markers++; else sum += id;
+		if (markers >= 2) {
+			return (byte) Math.max(Math.max(ia, ib), Math.max(ic, id));
+		}
+		int grays = 4 - markers;
+		return (byte) ((sum + grays / 2) / grays);
+	}
+
+	/**
+	 * One zoom level of the pyramid.
+	 */
+	private class Level {
+		private final int level;
+		private final int width;
+		private final int height;
+		private final Level coarser;
+		/**
+		 * The rows of the current band of tiles.
+		 */
+		private final byte[] band;
+		private int bandRows;
+		private int bandNo;
+		private int rows;
+		/**
+		 * The first row of a pair waiting to be averaged into the coarser level.
+		 */
+		private final byte[] pending;
+		private boolean hasPending;
+		private final byte[] reduced;
+
+		Level(int level, int width, int height, Level coarser) {
+			this.level = level;
+			this.width = width;
+			this.height = height;
+			this.coarser = coarser;
+			this.band = new byte[width * Math.min(tileSize, height)];
+			this.pending = coarser == null ? null : new byte[width];
+			this.reduced = coarser == null ? null : new byte[coarser.width];
+		}
+
+		void addRow(byte[] row, int offset) throws IOException {
+			System.arraycopy(row, offset, band, bandRows * width, width);
+			bandRows++;
+			rows++;
+
+			if (coarser != null) {
+				if (hasPending) {
+					reduce(pending, 0, row, offset);
+					hasPending = false;
+				} else {
+					System.arraycopy(row, offset, pending, 0, width);
+					hasPending = true;
+				}
+			}
+
+			if (bandRows == tileSize || rows == height) {
+				writeBand();
+			}
+		}
+
+		/**
+		 * Average a pair of rows into the coarser level. An odd last column or row is averaged with itself.
+		 */
+		private void reduce(byte[] first, int firstOffset, byte[] second, int secondOffset) throws IOException {
+			for (int x = 0; x < coarser.width; x++) {
+				int left = 2 * x;
+				int right = Math.min(left + 1, width - 1);
+				reduced[x] = downsample(first[firstOffset + left], first[firstOffset + right],
+						second[secondOffset + left], second[secondOffset + right]);
+			}
+			coarser.addRow(reduced, 0);
+		}
+
+		void finish() throws IOException {
+			if (hasPending) {
+				reduce(pending, 0, pending, 0);
+				hasPending = false;
+			}
+			if (rows != height) {
+				throw new IOException(String.format("Pyramid level %d incomplete: %d of %d rows written", level,
+						rows, height));
+			}
+		}
+
+		private void writeBand() throws IOException {
+			File dir = new File(tileDirectory, Integer.toString(level));
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Unable to create " + dir);
+			}
+			for (int col = 0; col * tileSize < width; col++) {
+				int x = col * tileSize;
+				int tileWidth = Math.min(tileSize, width - x);
+				File tile = new File(dir, String.format("%d_%d.png", col, bandNo));
+				OutputStream os = new BufferedOutputStream(new FileOutputStream(tile));
+				try {
+					PngWriter png = new PngWriter(os, tileWidth, bandRows, PartitionedBytePlot.PALETTE, encoding);
+					try {
+						for (int y = 0; y < bandRows; y++) {
+							png.writeRow(band, y * width + x);
+						}
+						png.finish();
+					} finally {
+						png.close();
+					}
+				} finally {
+					os.close();
+				}
+			}
+			bandRows = 0;
+			bandNo++;
+		}
+	}
+}